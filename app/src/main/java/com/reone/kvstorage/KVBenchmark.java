@@ -0,0 +1,397 @@
+package com.reone.kvstorage;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.reone.kvstoragelib.JsonMerge;
+import com.reone.kvstoragelib.KVStorage;
+import com.reone.kvstoragelib.KVStorageOptions;
+import com.reone.kvstoragelib.KVStore;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 简单的性能测试，在测试页面中运行，结果以文本形式返回
+ * 每项输出吞吐量和 p50/p99/max 延迟，作为升级前后对比的基线
+ * 不要在主线程调用
+ */
+public class KVBenchmark {
+
+    private static final String TABLE = "catalystLocalStorage";
+    private static final int SEED_ROWS = 1000;
+    private static final int READ_COUNT = 2000;
+    private static final int WRITE_BATCH = 2000;
+    private static final int MERGE_COUNT = 200;
+
+    private static final String KEY_PREFIX = "kv_benchmark:";
+    private static final int SINGLE_COUNT = 1000;
+    private static final int[] BATCH_SIZES = {1, 10, 100, 1000, 10000};
+    private static final int[] DOCUMENT_FIELDS = {10, 100, 1000};
+    private static final int SCAN_COUNT = 5;
+    private static final int MIXED_THREADS = 4;
+    private static final long MIXED_DURATION_MS = 3000;
+    private static final int MIXED_MAX_SAMPLES = 100000;
+
+    private final Context context;
+
+    public KVBenchmark(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * KVStorage公开接口：单key读写、批量读写、json合并、全量key扫描、并发混合读写
+     * 使用{@link #KEY_PREFIX}开头的key，结束后删除；需要先调用{@link KVStorage#init}
+     */
+    public String runOperations() throws JSONException, InterruptedException {
+        StringBuilder report = new StringBuilder("KVStorage接口\n");
+        try {
+            singleOperations(report);
+            batchOperations(report);
+            mergeOperations(report);
+            scanOperations(report);
+            mixedOperations(report);
+        } finally {
+            removeBenchmarkKeys();
+        }
+        return report.toString();
+    }
+
+    private void singleOperations(StringBuilder report) {
+        long[] samples = new long[SINGLE_COUNT];
+        for (int i = 0; i < SINGLE_COUNT; i++) {
+            long begin = System.nanoTime();
+            KVStorage.save(KEY_PREFIX + "single" + i, "value" + i);
+            samples[i] = System.nanoTime() - begin;
+        }
+        appendLine(report, "save", 1, samples);
+
+        for (int i = 0; i < SINGLE_COUNT; i++) {
+            long begin = System.nanoTime();
+            KVStorage.rxGet(KEY_PREFIX + "single" + i).blockingFirst();
+            samples[i] = System.nanoTime() - begin;
+        }
+        appendLine(report, "rxGet", 1, samples);
+
+        KVStorage.flush();
+        for (int i = 0; i < SINGLE_COUNT; i++) {
+            long begin = System.nanoTime();
+            KVStorage.getEngine().get(KEY_PREFIX + "single" + i);
+            samples[i] = System.nanoTime() - begin;
+        }
+        appendLine(report, "engine.get（无缓存）", 1, samples);
+
+        for (int i = 0; i < SINGLE_COUNT; i++) {
+            long begin = System.nanoTime();
+            KVStorage.rxRemove(KEY_PREFIX + "single" + i).blockingFirst();
+            samples[i] = System.nanoTime() - begin;
+        }
+        appendLine(report, "rxRemove", 1, samples);
+    }
+
+    /**
+     * 每个批量大小重复若干次，总行数大致相同
+     */
+    private void batchOperations(StringBuilder report) {
+        for (int size : BATCH_SIZES) {
+            int repeat = Math.max(3, Math.min(100, 10000 / size));
+            Map<String, String> keyValues = new LinkedHashMap<>(size);
+            for (int i = 0; i < size; i++) {
+                keyValues.put(KEY_PREFIX + "batch" + i, "value" + i);
+            }
+            long[] saveSamples = new long[repeat];
+            long[] getSamples = new long[repeat];
+            for (int i = 0; i < repeat; i++) {
+                long begin = System.nanoTime();
+                KVStorage.rxMultiSave(keyValues).blockingFirst();
+                saveSamples[i] = System.nanoTime() - begin;
+                begin = System.nanoTime();
+                KVStorage.multiGet(keyValues.keySet());
+                getSamples[i] = System.nanoTime() - begin;
+            }
+            appendLine(report, "rxMultiSave x" + size, size, saveSamples);
+            appendLine(report, "multiGet x" + size, size, getSamples);
+        }
+    }
+
+    /**
+     * 每次合并修改一个已有字段并新增一个字段，文档逐渐变大
+     */
+    private void mergeOperations(StringBuilder report) throws JSONException {
+        for (int fields : DOCUMENT_FIELDS) {
+            String key = KEY_PREFIX + "merge" + fields;
+            String document = flatDocument(fields);
+            KVStorage.save(key, document);
+            long[] samples = new long[MERGE_COUNT];
+            for (int i = 0; i < MERGE_COUNT; i++) {
+                String patch = "{\"field" + (i % fields) + "\":{\"name\":\"patched " + i + "\"},\"added" + i + "\":" + i + "}";
+                long begin = System.nanoTime();
+                KVStorage.mergeJson(key, patch);
+                samples[i] = System.nanoTime() - begin;
+            }
+            appendLine(report, "mergeJson " + document.length() / 1024 + "KB", 1, samples);
+        }
+    }
+
+    /**
+     * 在批量测试写入的key之上，对比一次性获取所有key和流式遍历
+     */
+    private void scanOperations(StringBuilder report) {
+        long[] allSamples = new long[SCAN_COUNT];
+        long[] streamSamples = new long[SCAN_COUNT];
+        long[] prefixSamples = new long[SCAN_COUNT];
+        int keyCount = 0;
+        for (int i = 0; i < SCAN_COUNT; i++) {
+            long begin = System.nanoTime();
+            keyCount = KVStorage.rxGetAllKeys().blockingFirst().size();
+            allSamples[i] = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            KVStorage.rxStreamKeys().count().blockingGet();
+            streamSamples[i] = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            KVStorage.rxScanPrefix(KEY_PREFIX + "batch").count().blockingGet();
+            prefixSamples[i] = System.nanoTime() - begin;
+        }
+        appendLine(report, "rxGetAllKeys x" + keyCount, keyCount, allSamples);
+        appendLine(report, "rxStreamKeys x" + keyCount, keyCount, streamSamples);
+        appendLine(report, "rxScanPrefix", BATCH_SIZES[BATCH_SIZES.length - 1], prefixSamples);
+    }
+
+    /**
+     * {@link #MIXED_THREADS}个线程同时读写，80%读20%写
+     */
+    private void mixedOperations(StringBuilder report) throws InterruptedException {
+        int keyCount = BATCH_SIZES[BATCH_SIZES.length - 1];
+        long[][] samples = new long[MIXED_THREADS][MIXED_MAX_SAMPLES];
+        int[] counts = new int[MIXED_THREADS];
+        long deadline = System.currentTimeMillis() + MIXED_DURATION_MS;
+        List<Thread> threads = new ArrayList<>(MIXED_THREADS);
+        for (int t = 0; t < MIXED_THREADS; t++) {
+            int index = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(index);
+                while (System.currentTimeMillis() < deadline && counts[index] < MIXED_MAX_SAMPLES) {
+                    String key = KEY_PREFIX + "batch" + random.nextInt(keyCount);
+                    long begin = System.nanoTime();
+                    if (random.nextInt(100) < 80) {
+                        KVStorage.rxGet(key).blockingFirst();
+                    } else {
+                        KVStorage.save(key, "mixed" + begin);
+                    }
+                    samples[index][counts[index]++] = System.nanoTime() - begin;
+                }
+            }, "kv-benchmark-mixed-" + t);
+            threads.add(thread);
+            thread.start();
+        }
+        int total = 0;
+        for (int t = 0; t < MIXED_THREADS; t++) {
+            threads.get(t).join();
+            total += counts[t];
+        }
+        long[] merged = new long[total];
+        int offset = 0;
+        for (int t = 0; t < MIXED_THREADS; t++) {
+            System.arraycopy(samples[t], 0, merged, offset, counts[t]);
+            offset += counts[t];
+        }
+        report.append(String.format(Locale.US, "mixed %d线程 80%%读: %.0f ops/s %s\n",
+                MIXED_THREADS, total * 1000.0 / MIXED_DURATION_MS, formatLatency(merged)));
+    }
+
+    private void removeBenchmarkKeys() {
+        List<String> keys = KVStorage.rxStreamKeys()
+                .filter(key -> key.startsWith(KEY_PREFIX))
+                .toList()
+                .blockingGet();
+        if (!keys.isEmpty()) {
+            KVStorage.rxRemove(keys.toArray(new String[0])).blockingFirst();
+        }
+    }
+
+    /**
+     * 名称、吞吐量（每个样本处理rowsPerSample行）和延迟
+     */
+    private static void appendLine(StringBuilder report, String name, int rowsPerSample, long[] samplesNanos) {
+        long total = 0;
+        for (long sample : samplesNanos) {
+            total += sample;
+        }
+        double rowsPerSecond = total == 0 ? 0 : (double) rowsPerSample * samplesNanos.length * 1e9 / total;
+        report.append(String.format(Locale.US, "%s: %.0f rows/s %s\n", name, rowsPerSecond, formatLatency(samplesNanos)));
+    }
+
+    /**
+     * 写事务进行中的读延迟：分别打开开启和关闭WAL的KVStorage实例，
+     * 一个线程不停地通过{@link KVStore#rxRunInTransaction}执行大事务写入，另一个线程通过{@link KVStore#get}测量单key读取的耗时
+     * 实例不使用内存缓存，每次读取都查询数据库；需要先调用{@link KVStorage#init}
+     */
+    public String runReadDuringWrite() throws InterruptedException {
+        return "写事务进行中的读延迟\n"
+                + readDuringWrite(true) + "\n"
+                + readDuringWrite(false) + "\n";
+    }
+
+    private String readDuringWrite(boolean wal) throws InterruptedException {
+        KVStore store = KVStorage.open(wal ? "kv_benchmark_wal" : "kv_benchmark_journal",
+                new KVStorageOptions.Builder()
+                        .walEnabled(wal)
+                        .cacheSize(0)
+                        .build());
+        try {
+            store.rxRunInTransaction(db -> {
+                writeBatch(db, 0, SEED_ROWS);
+                return true;
+            }).blockingFirst();
+
+            AtomicBoolean stop = new AtomicBoolean(false);
+            Thread writer = new Thread(() -> {
+                int start = SEED_ROWS;
+                while (!stop.get()) {
+                    int batchStart = start;
+                    store.rxRunInTransaction(db -> {
+                        writeBatch(db, batchStart, WRITE_BATCH);
+                        return true;
+                    }).blockingFirst();
+                    start += WRITE_BATCH;
+                }
+            }, "kv-benchmark-writer");
+            writer.start();
+
+            Random random = new Random(42);
+            long[] samples = new long[READ_COUNT];
+            for (int i = 0; i < READ_COUNT; i++) {
+                String key = "key" + random.nextInt(SEED_ROWS);
+                long begin = System.nanoTime();
+                store.get(key);
+                samples[i] = System.nanoTime() - begin;
+            }
+            stop.set(true);
+            writer.join();
+            return (wal ? "WAL:    " : "JOURNAL:") + " " + formatLatency(samples);
+        } finally {
+            store.clearAndCloseDatabase();
+        }
+    }
+
+    /**
+     * json合并：流式合并与{@link JsonMerge#mergeWithJSONObject}对比，
+     * 分别在约100KB的扁平文档和深层嵌套文档上合并一个小补丁
+     */
+    public String runJsonMerge() throws JSONException {
+        return "json合并\n"
+                + jsonMerge("扁平100KB", flatDocument(1500), "{\"field42\":{\"name\":\"patched\",\"extra\":true}}") + "\n"
+                + jsonMerge("嵌套64层", nestedDocument(64, 40), nestedPatch(64)) + "\n";
+    }
+
+    private String jsonMerge(String name, String document, String patch) throws JSONException {
+        String expected = JsonMerge.mergeWithJSONObject(document, patch);
+        String actual = JsonMerge.merge(document, patch);
+        if (!new JSONObject(actual).toString().equals(expected)) {
+            throw new IllegalStateException(name + " 合并结果不一致");
+        }
+        long[] legacy = new long[MERGE_COUNT];
+        long[] streaming = new long[MERGE_COUNT];
+        for (int i = 0; i < MERGE_COUNT; i++) {
+            long begin = System.nanoTime();
+            JsonMerge.mergeWithJSONObject(document, patch);
+            legacy[i] = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            JsonMerge.merge(document, patch);
+            streaming[i] = System.nanoTime() - begin;
+        }
+        return name + " (" + document.length() / 1024 + "KB)\n"
+                + "  JSONObject: " + formatLatency(legacy) + "\n"
+                + "  streaming:  " + formatLatency(streaming);
+    }
+
+    private static String flatDocument(int fieldCount) throws JSONException {
+        JSONObject document = new JSONObject();
+        for (int i = 0; i < fieldCount; i++) {
+            JSONObject field = new JSONObject();
+            field.put("name", "value " + i);
+            field.put("count", i);
+            field.put("ratio", i / 7.0);
+            field.put("tags", new JSONArray(Arrays.asList("a", "b", "c")));
+            document.put("field" + i, field);
+        }
+        return document.toString();
+    }
+
+    /**
+     * depth层嵌套，每层有width个简单字段和一个名为child的子对象
+     */
+    private static String nestedDocument(int depth, int width) throws JSONException {
+        JSONObject document = new JSONObject();
+        for (int level = 0; level < depth; level++) {
+            JSONObject parent = new JSONObject();
+            for (int i = 0; i < width; i++) {
+                parent.put("k" + i, "level " + level + " value " + i);
+            }
+            parent.put("child", document);
+            document = parent;
+        }
+        return document.toString();
+    }
+
+    /**
+     * 修改最深一层的一个字段
+     */
+    private static String nestedPatch(int depth) throws JSONException {
+        JSONObject patch = new JSONObject();
+        patch.put("k0", "patched");
+        for (int level = 0; level < depth - 1; level++) {
+            JSONObject parent = new JSONObject();
+            parent.put("child", patch);
+            patch = parent;
+        }
+        return patch.toString();
+    }
+
+    private static void writeBatch(SQLiteDatabase db, int start, int count) {
+        ContentValues values = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = start; i < start + count; i++) {
+                values.put("key", "key" + i);
+                values.put("value", "value" + i);
+                db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 输出 p50/p99/max，单位微秒，数字不带分组符号，便于比较；没有样本时只输出n=0
+     */
+    static String formatLatency(long[] samplesNanos) {
+        if (samplesNanos.length == 0) {
+            return "n=0";
+        }
+        long[] sorted = samplesNanos.clone();
+        Arrays.sort(sorted);
+        return String.format(Locale.US, "n=%d p50=%dus p99=%dus max=%dus",
+                sorted.length,
+                percentile(sorted, 50) / 1000,
+                percentile(sorted, 99) / 1000,
+                sorted[sorted.length - 1] / 1000);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -15,6 +15,9 @@ import java.util.List;
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
+import io.reactivex.Observable;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.schedulers.Schedulers;
 
 public class SimpleActivity extends AppCompatActivity {
 
@@ -32,7 +35,7 @@ public class SimpleActivity extends AppCompatActivity {
         ButterKnife.bind(this);
     }
 
-    @OnClick({R.id.btn_save, R.id.btn_get, R.id.btn_delete, R.id.btn_get_all, R.id.btn_clear})
+    @OnClick({R.id.btn_save, R.id.btn_get, R.id.btn_delete, R.id.btn_get_all, R.id.btn_clear, R.id.btn_benchmark})
     public void onViewClicked(View view) {
         switch (view.getId()) {
             case R.id.btn_save:
@@ -130,6 +133,27 @@ public class SimpleActivity extends AppCompatActivity {
                             }
                         });
                 break;
+            case R.id.btn_benchmark:
+                tvResult.setText("性能测试中...");
+                Observable.fromCallable(() -> {
+                    KVBenchmark benchmark = new KVBenchmark(this);
+                    return benchmark.runOperations() + "\n" + benchmark.runReadDuringWrite() + "\n" + benchmark.runJsonMerge();
+                })
+                        .subscribeOn(Schedulers.io())
+                        .observeOn(AndroidSchedulers.mainThread())
+                        .subscribe(new AsyncObserver<String>() {
+                            @Override
+                            public void onSuccess(String result) {
+                                tvResult.setText(result);
+                            }
+
+                            @Override
+                            public void onError(Throwable e) {
+                                showShortToast("性能测试失败," + e.getMessage());
+                                tvResult.setText(e.getMessage());
+                            }
+                        });
+                break;
         }
     }
 
@@ -0,0 +1,77 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * 定期删除过期的值
+ * 每次最多删除{@link #batchSize}个，一批一个事务，不会长时间持有写锁；
+ * 删满一批时立即安排下一批，排在写线程中已有的写操作之后
+ */
+final class ExpirySweeper {
+
+    private static final String TAG = "KVStorage";
+
+    interface Purger {
+        /**
+         * 在一个事务中删除最多limit个已过期的值
+         *
+         * @return 删除的行数
+         */
+        int purge(int limit);
+    }
+
+    private final Scheduler scheduler;
+    private final Purger purger;
+    private final long intervalMs;
+    private final int batchSize;
+
+    private final Object lock = new Object();
+    @Nullable
+    private Disposable scheduled;
+    private boolean stopped = false;
+
+    ExpirySweeper(Scheduler scheduler, Purger purger, long intervalMs, int batchSize) {
+        this.scheduler = scheduler;
+        this.purger = purger;
+        this.intervalMs = intervalMs;
+        this.batchSize = batchSize;
+    }
+
+    void start() {
+        schedule(intervalMs);
+    }
+
+    void stop() {
+        synchronized (lock) {
+            stopped = true;
+            if (scheduled != null) {
+                scheduled.dispose();
+                scheduled = null;
+            }
+        }
+    }
+
+    private void schedule(long delayMs) {
+        synchronized (lock) {
+            if (!stopped) {
+                scheduled = scheduler.scheduleDirect(this::sweep, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void sweep() {
+        int deleted = 0;
+        try {
+            deleted = purger.purge(batchSize);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "expiry sweep failed", e);
+        }
+        schedule(deleted >= batchSize ? 0 : intervalMs);
+    }
+}
@@ -0,0 +1,309 @@
+package com.reone.kvstoragelib;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * json字段上的二级索引，{@link SQLiteStorageEngine}使用，通过{@link KVStorageOptions.Builder#jsonIndex}声明
+ * 索引保存在单独的表中：(索引名, 字段值, key)，按索引名和字段值查询；字段值统一以字符串保存
+ * <p>
+ * 主表的任何插入、更新、删除都由触发器删除该key的索引行，写入json对象后再由{@link #add}按新值加入，
+ * 与写入在同一个事务中，所以索引中不会有过时的值；直接用sql写入的值不会加入索引
+ * 打开数据库时比较声明的索引和已建立的索引，新增或路径变化的索引按现有的值重建，不再声明的索引被删除
+ * <p>
+ * 不依赖sqlite的json1扩展和表达式索引（Android低版本不支持），json由org.json解析
+ */
+final class JsonIndex {
+
+    static final String TABLE_INDEX = "catalystJsonIndex";
+    static final String TABLE_DEFINITION = "catalystJsonIndexDefinition";
+    static final String NAME_COLUMN = "name";
+    static final String PATH_COLUMN = "path";
+
+    static final String INDEX_TABLE_CREATE =
+            String.format("CREATE TABLE IF NOT EXISTS %s (%s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, PRIMARY KEY (%s, %s, %s))",
+                    TABLE_INDEX, NAME_COLUMN, SQLiteStorageEngine.VALUE_COLUMN, SQLiteStorageEngine.KEY_COLUMN,
+                    NAME_COLUMN, SQLiteStorageEngine.VALUE_COLUMN, SQLiteStorageEngine.KEY_COLUMN);
+    /**
+     * 触发器按key删除索引行
+     */
+    static final String KEY_INDEX_CREATE =
+            String.format("CREATE INDEX IF NOT EXISTS %s_%s ON %s (%s)",
+                    TABLE_INDEX, SQLiteStorageEngine.KEY_COLUMN, TABLE_INDEX, SQLiteStorageEngine.KEY_COLUMN);
+    static final String DEFINITION_TABLE_CREATE =
+            String.format("CREATE TABLE IF NOT EXISTS %s (%s TEXT PRIMARY KEY, %s TEXT NOT NULL)",
+                    TABLE_DEFINITION, NAME_COLUMN, PATH_COLUMN);
+
+    /**
+     * 插入时sqlite的REPLACE不会触发DELETE触发器，所以插入、更新、删除各一个
+     */
+    private static final String[] TRIGGER_EVENTS = {"INSERT", "UPDATE", "DELETE"};
+    private static final String INSERT_ENTRY =
+            String.format("INSERT OR IGNORE INTO %s (%s, %s, %s) VALUES (?, ?, ?)",
+                    TABLE_INDEX, NAME_COLUMN, SQLiteStorageEngine.VALUE_COLUMN, SQLiteStorageEngine.KEY_COLUMN);
+    private static final String SELECT_MATCHES =
+            String.format("SELECT c.%s, c.%s FROM %s i JOIN %s c ON c.%s = i.%s WHERE i.%s = ? AND i.%s = ? AND (c.%s IS NULL OR c.%s > ?) ORDER BY i.%s",
+                    SQLiteStorageEngine.KEY_COLUMN, SQLiteStorageEngine.VALUE_COLUMN,
+                    TABLE_INDEX, SQLiteStorageEngine.TABLE_CATALYST,
+                    SQLiteStorageEngine.KEY_COLUMN, SQLiteStorageEngine.KEY_COLUMN,
+                    NAME_COLUMN, SQLiteStorageEngine.VALUE_COLUMN,
+                    SQLiteStorageEngine.EXPIRES_COLUMN, SQLiteStorageEngine.EXPIRES_COLUMN,
+                    SQLiteStorageEngine.KEY_COLUMN);
+
+    /**
+     * 索引名到字段路径（以.分隔）
+     */
+    @NonNull
+    private final Map<String, String[]> paths = new HashMap<>();
+    /**
+     * {@link #drop}之后、{@link #restore}之前为true，写入时不加入索引
+     */
+    private volatile boolean deferred = false;
+
+    JsonIndex(@NonNull Map<String, String> definitions) {
+        for (Map.Entry<String, String> entry : definitions.entrySet()) {
+            paths.put(entry.getKey(), entry.getValue().split("\\."));
+        }
+    }
+
+    boolean isEmpty() {
+        return paths.isEmpty();
+    }
+
+    /**
+     * 值可能是json对象，需要加入索引；写入这样的值时应与{@link #add}在同一个事务中
+     */
+    boolean accepts(@Nullable String value) {
+        if (value == null || paths.isEmpty() || deferred) {
+            return false;
+        }
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把value中索引字段的值加入索引，在写入value的同一个事务中、写入成功后调用
+     * 不是json对象的值、不存在的字段、对象字段被忽略；数组字段中的每个基本类型元素分别加入
+     */
+    void add(@NonNull SQLiteDatabase db, @NonNull String key, @NonNull String value) {
+        if (!accepts(value)) {
+            return;
+        }
+        JSONObject json;
+        try {
+            json = new JSONObject(value);
+        } catch (JSONException e) {
+            return;
+        }
+        try (SQLiteStatement statement = db.compileStatement(INSERT_ENTRY)) {
+            for (Map.Entry<String, String[]> entry : paths.entrySet()) {
+                insertEntries(statement, entry.getKey(), key, extract(json, entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * 查询索引字段等于value的所有未过期的键值对，按key排序
+     *
+     * @throws IllegalArgumentException 没有声明该索引
+     */
+    void query(@NonNull SQLiteDatabase db, @NonNull ValueCodec codec, @NonNull String name, @NonNull String value,
+               @NonNull Map<String, String> result) {
+        if (!paths.containsKey(name)) {
+            throw new IllegalArgumentException("Json index " + name + " is not declared");
+        }
+        String[] selectionArgs = {name, value, String.valueOf(System.currentTimeMillis())};
+        try (Cursor cursor = db.rawQuery(SELECT_MATCHES, selectionArgs)) {
+            while (cursor.moveToNext()) {
+                result.put(cursor.getString(0), codec.read(cursor, 1));
+            }
+        }
+    }
+
+    /**
+     * 使已建立的索引与声明一致，在打开数据库时调用
+     * 新增或路径变化的索引按现有的值重建（需要读取并解析所有值），在一个事务中完成
+     */
+    void sync(@NonNull SQLiteDatabase db, @NonNull ValueCodec codec) {
+        Map<String, String> existing = new HashMap<>();
+        try (Cursor cursor = db.query(TABLE_DEFINITION, null, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                existing.put(cursor.getString(0), cursor.getString(1));
+            }
+        }
+        // 没有声明也没有建立过索引时不开启写事务；建立过索引时一定有定义
+        if (paths.isEmpty() && existing.isEmpty()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            for (String name : existing.keySet()) {
+                String[] path = paths.get(name);
+                if (path == null || !join(path).equals(existing.get(name))) {
+                    deleteIndex(db, name);
+                }
+            }
+            List<String> rebuild = new ArrayList<>();
+            for (Map.Entry<String, String[]> entry : paths.entrySet()) {
+                if (!join(entry.getValue()).equals(existing.get(entry.getKey()))) {
+                    rebuild.add(entry.getKey());
+                }
+            }
+            for (String event : TRIGGER_EVENTS) {
+                db.execSQL(paths.isEmpty() ? dropTrigger(event) : createTrigger(event));
+            }
+            if (!rebuild.isEmpty()) {
+                build(db, codec, rebuild);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 大量导入前调用：删除触发器和所有索引数据，之后的写入不再逐行维护索引，导入后用{@link #restore}一次性重建
+     * 索引定义一起删除，进程在重建前退出时，下次打开数据库时由{@link #sync}重建
+     */
+    void drop(@NonNull SQLiteDatabase db) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            deferred = true;
+            for (String event : TRIGGER_EVENTS) {
+                db.execSQL(dropTrigger(event));
+            }
+            db.delete(TABLE_INDEX, null, null);
+            db.delete(TABLE_DEFINITION, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 与{@link #drop}成对，恢复触发器并按现有的值重建所有索引
+     */
+    void restore(@NonNull SQLiteDatabase db, @NonNull ValueCodec codec) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            deferred = false;
+            // 导入期间的其他写入可能留下了索引行，没有触发器清理，重建前一起删除
+            db.delete(TABLE_INDEX, null, null);
+            db.delete(TABLE_DEFINITION, null, null);
+            sync(db, codec);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void build(SQLiteDatabase db, ValueCodec codec, List<String> names) {
+        String[] columns = {SQLiteStorageEngine.KEY_COLUMN, SQLiteStorageEngine.VALUE_COLUMN};
+        try (SQLiteStatement statement = db.compileStatement(INSERT_ENTRY);
+             Cursor cursor = db.query(SQLiteStorageEngine.TABLE_CATALYST, columns, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                String value = cursor.getType(1) == Cursor.FIELD_TYPE_STRING || cursor.getType(1) == Cursor.FIELD_TYPE_BLOB
+                        ? codec.read(cursor, 1) : null;
+                if (!accepts(value)) {
+                    continue;
+                }
+                JSONObject json;
+                try {
+                    json = new JSONObject(value);
+                } catch (JSONException e) {
+                    continue;
+                }
+                for (String name : names) {
+                    insertEntries(statement, name, cursor.getString(0), extract(json, paths.get(name)));
+                }
+            }
+        }
+        try (SQLiteStatement statement = db.compileStatement(
+                String.format("INSERT INTO %s (%s, %s) VALUES (?, ?)", TABLE_DEFINITION, NAME_COLUMN, PATH_COLUMN))) {
+            for (String name : names) {
+                statement.bindString(1, name);
+                statement.bindString(2, join(paths.get(name)));
+                statement.executeInsert();
+                statement.clearBindings();
+            }
+        }
+    }
+
+    private static void deleteIndex(SQLiteDatabase db, String name) {
+        String[] whereArgs = {name};
+        db.delete(TABLE_INDEX, NAME_COLUMN + " = ?", whereArgs);
+        db.delete(TABLE_DEFINITION, NAME_COLUMN + " = ?", whereArgs);
+    }
+
+    private static void insertEntries(SQLiteStatement statement, String name, String key, @Nullable Object field) {
+        if (field instanceof JSONArray) {
+            JSONArray array = (JSONArray) field;
+            for (int i = 0; i < array.length(); i++) {
+                insertEntries(statement, name, key, array.opt(i));
+            }
+        } else if (field instanceof String || field instanceof Number || field instanceof Boolean) {
+            statement.bindString(1, name);
+            statement.bindString(2, field.toString());
+            statement.bindString(3, key);
+            statement.executeInsert();
+            statement.clearBindings();
+        }
+    }
+
+    @Nullable
+    private static Object extract(JSONObject json, String[] path) {
+        Object field = json;
+        for (String name : path) {
+            if (!(field instanceof JSONObject)) {
+                return null;
+            }
+            field = ((JSONObject) field).opt(name);
+        }
+        return field;
+    }
+
+    private static String join(String[] path) {
+        StringBuilder builder = new StringBuilder();
+        for (String name : path) {
+            if (builder.length() > 0) {
+                builder.append('.');
+            }
+            builder.append(name);
+        }
+        return builder.toString();
+    }
+
+    private static String createTrigger(String event) {
+        return String.format("CREATE TRIGGER IF NOT EXISTS %s_%s AFTER %s ON %s BEGIN DELETE FROM %s WHERE %s = %s.%s; END",
+                TABLE_INDEX, event.toLowerCase(Locale.US), event, SQLiteStorageEngine.TABLE_CATALYST,
+                TABLE_INDEX, SQLiteStorageEngine.KEY_COLUMN, "DELETE".equals(event) ? "OLD" : "NEW", SQLiteStorageEngine.KEY_COLUMN);
+    }
+
+    private static String dropTrigger(String event) {
+        return String.format("DROP TRIGGER IF EXISTS %s_%s", TABLE_INDEX, event.toLowerCase(Locale.US));
+    }
+}
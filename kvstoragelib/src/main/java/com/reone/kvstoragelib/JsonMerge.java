@@ -0,0 +1,491 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * json合并，{@link KVStorage#mergeJson}使用
+ * <p>
+ * 默认走流式合并：只扫描旧文档，未修改的成员按原文复制，只有补丁涉及的子对象才递归合并，
+ * 不构建{@link JSONObject}树，也不重新序列化整个文档。
+ * 合并语义与{@link #mergeWithJSONObject}相同，但未修改的值保留原文（数字写法、转义等），结果在文本上可能不同。
+ * 遇到不符合严格json语法的输入、重复的key或嵌套过深时退回到{@link #mergeWithJSONObject}
+ */
+public final class JsonMerge {
+
+    private static final int MAX_DEPTH = 256;
+
+    private JsonMerge() {
+    }
+
+    /**
+     * 合并旧值与新值，旧值不存在时直接返回新值
+     */
+    @NonNull
+    public static String merge(@Nullable String oldValue, @NonNull String value) throws JSONException {
+        if (oldValue == null) {
+            return value;
+        }
+        String merged = streamingMerge(oldValue, value);
+        return merged != null ? merged : mergeWithJSONObject(oldValue, value);
+    }
+
+    /**
+     * 解析为{@link JSONObject}后用{@link #deepMergeInto}合并，再整体序列化
+     */
+    @NonNull
+    public static String mergeWithJSONObject(@Nullable String oldValue, @NonNull String value) throws JSONException {
+        if (oldValue == null) {
+            return value;
+        }
+        JSONObject oldJSON = new JSONObject(oldValue);
+        JSONObject newJSON = new JSONObject(value);
+        deepMergeInto(oldJSON, newJSON);
+        return oldJSON.toString();
+    }
+
+    /**
+     * 合并两个{@link JSONObject}。
+     * newJSON对象将通过覆盖其值或合并它们来与oldJSON对象合并（如果两个对象中相同键的值都是{@link JSONObject}类型）。
+     * oldJSON将包含此合并的结果。
+     */
+    private static void deepMergeInto(JSONObject oldJSON, JSONObject newJSON)
+            throws JSONException {
+        Iterator<?> keys = newJSON.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+
+            JSONObject newJSONObject = newJSON.optJSONObject(key);
+            JSONObject oldJSONObject = oldJSON.optJSONObject(key);
+            if (newJSONObject != null && oldJSONObject != null) {
+                deepMergeInto(oldJSONObject, newJSONObject);
+                oldJSON.put(key, oldJSONObject);
+            } else {
+                oldJSON.put(key, newJSON.get(key));
+            }
+        }
+    }
+
+    /**
+     * @return 合并结果，无法流式合并时返回null
+     */
+    @Nullable
+    static String streamingMerge(@NonNull String oldValue, @NonNull String value) {
+        Scanner old = new Scanner(oldValue);
+        Scanner patch = new Scanner(value);
+        StringBuilder out = new StringBuilder(oldValue.length() + value.length());
+        try {
+            old.skipWhitespace();
+            patch.skipWhitespace();
+            mergeObject(old, patch, out, 0);
+            old.expectEnd();
+            patch.expectEnd();
+        } catch (MalformedException e) {
+            return null;
+        }
+        return out.toString();
+    }
+
+    /**
+     * 两个scanner都指向'{'，结束时都在'}'之后
+     */
+    private static void mergeObject(Scanner old, Scanner patch, StringBuilder out, int depth) throws MalformedException {
+        if (depth > MAX_DEPTH) {
+            throw MalformedException.INSTANCE;
+        }
+        List<Member> patchMembers = patch.readMembers(depth);
+        int patchEnd = patch.pos;
+        boolean[] merged = new boolean[patchMembers.size()];
+
+        out.append('{');
+        boolean first = true;
+        old.expect('{');
+        old.skipWhitespace();
+        if (old.peek() == '}') {
+            old.pos++;
+        } else {
+            while (true) {
+                int keyStart = old.pos;
+                int matched = old.matchKey(patchMembers);
+                int keyEnd = old.pos;
+                old.skipWhitespace();
+                old.expect(':');
+                old.skipWhitespace();
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                if (matched < 0) {
+                    int valueStart = old.pos;
+                    old.skipValue(depth + 1);
+                    out.append(old.json, keyStart, keyEnd).append(':').append(old.json, valueStart, old.pos);
+                } else {
+                    if (merged[matched]) {
+                        // 旧文档中有重复的key，交给JSONObject处理
+                        throw MalformedException.INSTANCE;
+                    }
+                    merged[matched] = true;
+                    Member member = patchMembers.get(matched);
+                    out.append(old.json, keyStart, keyEnd).append(':');
+                    if (old.peek() == '{' && patch.json.charAt(member.valueStart) == '{') {
+                        patch.pos = member.valueStart;
+                        mergeObject(old, patch, out, depth + 1);
+                    } else {
+                        old.skipValue(depth + 1);
+                        out.append(patch.json, member.valueStart, member.valueEnd);
+                    }
+                }
+                old.skipWhitespace();
+                if (old.peek() == ',') {
+                    old.pos++;
+                    old.skipWhitespace();
+                    continue;
+                }
+                old.expect('}');
+                break;
+            }
+        }
+        for (int i = 0; i < patchMembers.size(); i++) {
+            if (!merged[i]) {
+                Member member = patchMembers.get(i);
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append(patch.json, member.keyStart, member.keyEnd)
+                        .append(':')
+                        .append(patch.json, member.valueStart, member.valueEnd);
+            }
+        }
+        out.append('}');
+        patch.pos = patchEnd;
+    }
+
+    /**
+     * 补丁对象的一个成员，key已解码，其余为在原文中的位置
+     */
+    private static final class Member {
+        final String key;
+        final int keyStart;
+        final int keyEnd;
+        final int valueStart;
+        final int valueEnd;
+
+        Member(String key, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+            this.key = key;
+            this.keyStart = keyStart;
+            this.keyEnd = keyEnd;
+            this.valueStart = valueStart;
+            this.valueEnd = valueEnd;
+        }
+    }
+
+    /**
+     * 严格按json语法扫描，只校验和跳过，不构建对象
+     */
+    private static final class Scanner {
+        final String json;
+        int pos = 0;
+
+        Scanner(String json) {
+            this.json = json;
+        }
+
+        char peek() throws MalformedException {
+            if (pos >= json.length()) {
+                throw MalformedException.INSTANCE;
+            }
+            return json.charAt(pos);
+        }
+
+        void expect(char c) throws MalformedException {
+            if (peek() != c) {
+                throw MalformedException.INSTANCE;
+            }
+            pos++;
+        }
+
+        void expectEnd() throws MalformedException {
+            skipWhitespace();
+            if (pos != json.length()) {
+                throw MalformedException.INSTANCE;
+            }
+        }
+
+        void skipWhitespace() {
+            while (pos < json.length()) {
+                char c = json.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        /**
+         * 读取pos处对象的所有成员，结束时pos在'}'之后，key重复时视为无法处理
+         */
+        List<Member> readMembers(int depth) throws MalformedException {
+            List<Member> members = new ArrayList<>();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return members;
+            }
+            while (true) {
+                int keyStart = pos;
+                String key = readString();
+                int keyEnd = pos;
+                for (Member member : members) {
+                    if (member.key.equals(key)) {
+                        throw MalformedException.INSTANCE;
+                    }
+                }
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                int valueStart = pos;
+                skipValue(depth + 1);
+                members.add(new Member(key, keyStart, keyEnd, valueStart, pos));
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                    skipWhitespace();
+                    continue;
+                }
+                expect('}');
+                return members;
+            }
+        }
+
+        /**
+         * 扫描pos处的key，返回在members中的下标，不存在时返回-1
+         * key中没有转义时直接与原文比较，不分配字符串
+         */
+        int matchKey(List<Member> members) throws MalformedException {
+            int start = pos;
+            boolean escaped = skipString();
+            if (members.isEmpty()) {
+                return -1;
+            }
+            if (escaped) {
+                pos = start;
+                String key = readString();
+                for (int i = 0; i < members.size(); i++) {
+                    if (members.get(i).key.equals(key)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+            int length = pos - start - 2;
+            for (int i = 0; i < members.size(); i++) {
+                String key = members.get(i).key;
+                if (key.length() == length && json.regionMatches(start + 1, key, 0, length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void skipValue(int depth) throws MalformedException {
+            if (depth > MAX_DEPTH) {
+                throw MalformedException.INSTANCE;
+            }
+            char c = peek();
+            switch (c) {
+                case '{':
+                    pos++;
+                    skipWhitespace();
+                    if (peek() == '}') {
+                        pos++;
+                        return;
+                    }
+                    while (true) {
+                        skipString();
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                        skipValue(depth + 1);
+                        skipWhitespace();
+                        if (peek() == ',') {
+                            pos++;
+                            skipWhitespace();
+                            continue;
+                        }
+                        expect('}');
+                        return;
+                    }
+                case '[':
+                    pos++;
+                    skipWhitespace();
+                    if (peek() == ']') {
+                        pos++;
+                        return;
+                    }
+                    while (true) {
+                        skipValue(depth + 1);
+                        skipWhitespace();
+                        if (peek() == ',') {
+                            pos++;
+                            skipWhitespace();
+                            continue;
+                        }
+                        expect(']');
+                        return;
+                    }
+                case '"':
+                    skipString();
+                    return;
+                case 't':
+                    skipLiteral("true");
+                    return;
+                case 'f':
+                    skipLiteral("false");
+                    return;
+                case 'n':
+                    skipLiteral("null");
+                    return;
+                default:
+                    skipNumber();
+            }
+        }
+
+        private void skipLiteral(String literal) throws MalformedException {
+            if (!json.startsWith(literal, pos)) {
+                throw MalformedException.INSTANCE;
+            }
+            pos += literal.length();
+        }
+
+        /**
+         * -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+         */
+        private void skipNumber() throws MalformedException {
+            if (pos < json.length() && json.charAt(pos) == '-') {
+                pos++;
+            }
+            if (peek() == '0') {
+                pos++;
+            } else {
+                skipDigits();
+            }
+            if (pos < json.length() && json.charAt(pos) == '.') {
+                pos++;
+                skipDigits();
+            }
+            if (pos < json.length() && (json.charAt(pos) == 'e' || json.charAt(pos) == 'E')) {
+                pos++;
+                if (peek() == '+' || peek() == '-') {
+                    pos++;
+                }
+                skipDigits();
+            }
+        }
+
+        private void skipDigits() throws MalformedException {
+            int start = pos;
+            while (pos < json.length() && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+                pos++;
+            }
+            if (pos == start) {
+                throw MalformedException.INSTANCE;
+            }
+        }
+
+        /**
+         * @return 字符串中是否有转义
+         */
+        private boolean skipString() throws MalformedException {
+            expect('"');
+            boolean escaped = false;
+            while (true) {
+                char c = peek();
+                pos++;
+                if (c == '"') {
+                    return escaped;
+                }
+                if (c == '\\') {
+                    escaped = true;
+                    char e = peek();
+                    pos++;
+                    if (e == 'u') {
+                        if (pos + 4 > json.length()) {
+                            throw MalformedException.INSTANCE;
+                        }
+                        for (int i = 0; i < 4; i++) {
+                            if (Character.digit(json.charAt(pos + i), 16) < 0) {
+                                throw MalformedException.INSTANCE;
+                            }
+                        }
+                        pos += 4;
+                    } else if ("\"\\/bfnrt".indexOf(e) < 0) {
+                        throw MalformedException.INSTANCE;
+                    }
+                } else if (c < 0x20) {
+                    throw MalformedException.INSTANCE;
+                }
+            }
+        }
+
+        private String readString() throws MalformedException {
+            int start = pos;
+            if (!skipString()) {
+                return json.substring(start + 1, pos - 1);
+            }
+            StringBuilder builder = new StringBuilder(pos - start);
+            for (int i = start + 1; i < pos - 1; i++) {
+                char c = json.charAt(i);
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+                char e = json.charAt(++i);
+                switch (e) {
+                    case 'u':
+                        builder.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    default:
+                        builder.append(e);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * 输入无法流式处理，只用于控制流程，不记录调用栈
+     */
+    private static final class MalformedException extends Exception {
+        static final MalformedException INSTANCE = new MalformedException();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
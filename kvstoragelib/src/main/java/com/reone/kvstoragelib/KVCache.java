@@ -0,0 +1,161 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * KVStorage 的内存读缓存，按字节数限制大小的LRU
+ * 命中时不访问数据库；写操作先使缓存失效，落库成功后再回写
+ * 通过 generation 计数避免读线程把写之前查到的旧值放回缓存
+ * 带过期时间的值（{@link KVStorage#save(String, String, long)}）过期后不再命中
+ */
+public final class KVCache {
+
+    @Nullable
+    private final LruCache<String, String> lruCache;
+    /**
+     * 缓存中带过期时间的key，条目被移除时同步移除
+     */
+    private final Map<String, Long> expiries = new HashMap<>();
+    private long generation = 0;
+
+    KVCache(int maxSizeBytes) {
+        if (maxSizeBytes > 0) {
+            lruCache = new LruCache<String, String>(maxSizeBytes) {
+                @Override
+                protected int sizeOf(String key, String value) {
+                    // java String 每个字符占2字节
+                    return (key.length() + value.length()) * 2;
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+                    // 在KVCache的锁内调用
+                    expiries.remove(key);
+                }
+            };
+        } else {
+            lruCache = null;
+        }
+    }
+
+    @Nullable
+    synchronized String get(String key) {
+        if (lruCache == null) {
+            return null;
+        }
+        if (!expiries.isEmpty()) {
+            Long expiresAt = expiries.get(key);
+            if (expiresAt != null && expiresAt <= System.currentTimeMillis()) {
+                lruCache.remove(key);
+                return null;
+            }
+        }
+        return lruCache.get(key);
+    }
+
+    /**
+     * 开始从数据库加载，返回当前 generation，加载完成后配合{@link #putIfUnchanged}使用
+     */
+    synchronized long beginLoad() {
+        return generation;
+    }
+
+    /**
+     * 如果从{@link #beginLoad()}之后没有发生写操作，则放入缓存
+     */
+    synchronized void putIfUnchanged(String key, @Nullable String value, long loadGeneration) {
+        putIfUnchanged(key, value, loadGeneration, null);
+    }
+
+    /**
+     * @param expiresAt 过期时间（{@link System#currentTimeMillis()}），null表示不过期
+     */
+    synchronized void putIfUnchanged(String key, @Nullable String value, long loadGeneration, @Nullable Long expiresAt) {
+        if (lruCache == null || value == null || loadGeneration != generation) {
+            return;
+        }
+        lruCache.put(key, value);
+        if (expiresAt != null) {
+            expiries.put(key, expiresAt);
+        } else {
+            expiries.remove(key);
+        }
+    }
+
+    /**
+     * 写入成功后回写：写入期间没有其他写操作时放入缓存，否则移除该key
+     * （重叠的写入可能已经回写了自己的值，而数据库中是后提交的值），
+     * 并且总是增加 generation，使写入完成前开始的加载（可能查到写入前的旧值）不能再放入缓存
+     *
+     * @param writeGeneration 写入前{@link #invalidate}返回的 generation
+     * @param expiresAt       过期时间，null表示不过期
+     */
+    synchronized void putAfterWrite(String key, String value, long writeGeneration, @Nullable Long expiresAt) {
+        if (writeGeneration == generation) {
+            putIfUnchanged(key, value, writeGeneration, expiresAt);
+        } else if (lruCache != null) {
+            lruCache.remove(key);
+        }
+        generation++;
+    }
+
+    /**
+     * 使给定key失效，返回新的 generation，写入成功后用于{@link #putAfterWrite}回写
+     */
+    synchronized long invalidate(String... keys) {
+        generation++;
+        if (lruCache != null) {
+            for (String key : keys) {
+                lruCache.remove(key);
+            }
+        }
+        return generation;
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        if (lruCache != null) {
+            lruCache.evictAll();
+        }
+    }
+
+    public boolean isEnabled() {
+        return lruCache != null;
+    }
+
+    public synchronized int hitCount() {
+        return lruCache == null ? 0 : lruCache.hitCount();
+    }
+
+    public synchronized int missCount() {
+        return lruCache == null ? 0 : lruCache.missCount();
+    }
+
+    public synchronized int evictionCount() {
+        return lruCache == null ? 0 : lruCache.evictionCount();
+    }
+
+    /**
+     * 当前占用的字节数
+     */
+    public synchronized int size() {
+        return lruCache == null ? 0 : lruCache.size();
+    }
+
+    /**
+     * 最大字节数
+     */
+    public synchronized int maxSize() {
+        return lruCache == null ? 0 : lruCache.maxSize();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("KVCache[size=%d,maxSize=%d,hits=%d,misses=%d,evictions=%d]",
+                size(), maxSize(), hitCount(), missCount(), evictionCount());
+    }
+}
@@ -0,0 +1,72 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * 默认的读写线程：每个实例一个写线程（分片模式下另有每个分片一个）+ 所有实例共用的固定大小的读线程池，空闲时线程会退出
+ * 写操作在同一个线程中按提交顺序执行，不会因为争抢数据库写锁而堆积大量io线程
+ */
+final class KVSchedulers {
+
+    private static final int READER_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private KVSchedulers() {
+    }
+
+    @NonNull
+    private static Scheduler newReader() {
+        return Schedulers.from(newExecutor("KVStorage-reader-", READER_THREADS));
+    }
+
+    /**
+     * 所有实例共用的读线程池
+     */
+    @NonNull
+    static Scheduler sharedReader() {
+        return SharedReader.INSTANCE;
+    }
+
+    @NonNull
+    static Scheduler newWriter() {
+        return Schedulers.from(newExecutor("KVStorage-writer-", 1));
+    }
+
+    private static ThreadPoolExecutor newExecutor(String namePrefix, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamedThreadFactory(namePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static final class SharedReader {
+        static final Scheduler INSTANCE = newReader();
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
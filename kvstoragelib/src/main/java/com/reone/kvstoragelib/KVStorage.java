@@ -1,97 +1,192 @@
 package com.reone.kvstoragelib;
 
 
-import android.annotation.SuppressLint;
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.text.TextUtils;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
-import io.reactivex.ObservableEmitter;
-import io.reactivex.android.schedulers.AndroidSchedulers;
-import io.reactivex.schedulers.Schedulers;
 
 /**
  * Created by wangxingsheng on 2018/9/13.
  * 键值对数据库，KV存储
  * 整理RN数据库部分代码，构建一个用于Android的 Key-Value型数据库，主要参考：{@link com.facebook.react.modules.storage.AsyncLocalStorageUtil}、{@link com.facebook.react.modules.storage.ReactDatabaseSupplier}
+ * 底层存储由{@link StorageEngine}实现，默认为{@link SQLiteStorageEngine}
+ * 静态方法操作默认实例；{@link #open(String, KVStorageOptions)}获取独立的{@link KVStore}实例
  * 测试页面 {@link com.ocj.oms.mobile.ui.KVStorageTestActivity}
  */
 public class KVStorage {
 
-    private static final String DATABASE_NAME = "KVStorage";
-    private static final String TABLE_CATALYST = "catalystLocalStorage";
-    private static final String KEY_COLUMN = "key";
-    private static final String VALUE_COLUMN = "value";
-    private static final int DATABASE_VERSION = 1;
-    private static final int SLEEP_TIME_MS = 30;
-    private static final int MAX_SQL_KEYS = 999;
-
-    private static final String VERSION_TABLE_CREATE =
-            String.format("CREATE TABLE %s (%s TEXT PRIMARY KEY, %s TEXT NOT NULL)", TABLE_CATALYST, KEY_COLUMN, VALUE_COLUMN);
-
     private static Context appContext = null;
+    @Nullable
+    private static volatile KVStore defaultStore = null;
+    /**
+     * 通过{@link #open}打开的实例，同名只打开一次
+     */
+    private static final Map<String, KVStore> stores = new HashMap<>();
 
     public static void init(Context appContext) {
+        init(appContext, KVStorageOptions.defaults());
+    }
+
+    public static void init(Context appContext, @NonNull KVStorageOptions options) {
         KVStorage.appContext = appContext.getApplicationContext();
+        KVStore previous = KVStorage.defaultStore;
+        if (previous != null) {
+            previous.shutdown();
+        }
+        KVStorage.defaultStore = new KVStore(KVStorage.appContext, null, options);
     }
 
     /**
-     * 获取数据库实例
+     * 打开一个独立的实例，有自己的数据库文件（sqlite引擎为 KVStorage-name）、大小上限、缓存和写线程
+     * 同名的实例只打开一次，之后再次调用返回同一个实例，options被忽略
+     * 需要先调用{@link #init}
+     *
+     * @param name 实例名，会作为文件名的一部分，只能包含字母、数字、'_'和'-'
      */
     @NonNull
-    private static KVStorageDatabaseSupplier getSupplier() {
+    public static KVStore open(@NonNull String name, @NonNull KVStorageOptions options) {
+        if (!name.matches("[A-Za-z0-9_\\-]+")) {
+            throw new IllegalArgumentException("Invalid store name: " + name);
+        }
         if (appContext == null) {
             throw new IllegalArgumentException("KVStorage not initialized yet, need to call KVStorage.init(context) in Application.");
         }
-        return KVStorageDatabaseSupplier.getInstance(appContext);
+        synchronized (stores) {
+            KVStore store = stores.get(name);
+            if (store == null) {
+                store = new KVStore(appContext, name, options);
+                stores.put(name, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * 默认实例
+     */
+    @NonNull
+    public static KVStore store() {
+        KVStore store = defaultStore;
+        if (store == null) {
+            throw new IllegalArgumentException("KVStorage not initialized yet, need to call KVStorage.init(context) in Application.");
+        }
+        return store;
+    }
+
+    /**
+     * 延迟写模式下，立即把待写数据写入数据库
+     */
+    public static void flush() {
+        store().flush();
+    }
+
+    /**
+     * 内存读缓存，可用于查看命中/未命中/淘汰次数
+     */
+    @NonNull
+    public static KVCache getCache() {
+        return store().getCache();
+    }
+
+    /**
+     * 各操作的次数、耗时分布、读写量以及数据库大小
+     */
+    @NonNull
+    public static KVStorageMetrics getMetrics() {
+        return store().getMetrics();
+    }
+
+    /**
+     * 获取存储引擎，init中的预热还没有完成时等待预热完成
+     */
+    @NonNull
+    public static StorageEngine getEngine() {
+        return store().getEngine();
     }
 
     /**
      * 开启事务执行
+     * 事务中可以执行任意sql，结束后会清空内存缓存
+     * 无法知道改动了哪些key，提交后所有订阅者收到{@link KeyChange.Type#UNKNOWN}
+     * 仅{@link SQLiteStorageEngine}可用
      */
     public static <R> Observable<R> rxRunInTransaction(TransactionRunnable<SQLiteDatabase, R> func) {
-        return Observable.create((ObservableEmitter<R> s) -> {
-            try {
-                getSupplier().get().beginTransaction();
-                s.onNext(func.invoke(getSupplier().get()));
-                getSupplier().get().setTransactionSuccessful();
-            } finally {
-                getSupplier().get().endTransaction();
-                s.onComplete();
-            }
-        }).subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread());
+        return store().rxRunInTransaction(func);
+    }
+
+    /**
+     * 同步获取，先查内存缓存，未命中时查数据库
+     *
+     * @return 不存在时返回null
+     */
+    @Nullable
+    public static String get(@NonNull String key) {
+        return store().get(key);
     }
 
     /**
      * 异步获取
+     * 缓存命中时直接返回，不访问数据库也不切换到读线程
      */
     public static Observable<String> rxGet(@NonNull String key) {
-        return Observable.create((ObservableEmitter<String> s) -> {
-            s.onNext(getItemImpl(getSupplier().get(), key));
-            s.onComplete();
-        }).subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread());
+        return store().rxGet(key);
+    }
+
+    /**
+     * 同步批量获取
+     * sqlite引擎中缓存未命中的key按999个一组用 IN 查询
+     *
+     * @return key对应的值，不存在的key不会出现在结果中
+     */
+    @NonNull
+    public static Map<String, String> multiGet(@NonNull Collection<String> keys) {
+        return store().multiGet(keys);
+    }
+
+    /**
+     * 异步批量获取
+     */
+    public static Observable<Map<String, String>> rxMultiGet(String... keys) {
+        return store().rxMultiGet(keys);
+    }
+
+    /**
+     * 按json索引查询：索引字段等于value的所有键值对，按key排序
+     * 索引由{@link KVStorageOptions.Builder#jsonIndex}声明；仅{@link SQLiteStorageEngine}可用
+     *
+     * @throws IllegalArgumentException 没有声明该索引
+     */
+    @NonNull
+    public static Map<String, String> query(@NonNull String indexName, @NonNull String value) {
+        return store().query(indexName, value);
+    }
+
+    /**
+     * 异步按json索引查询，代替getAllKeys后逐个get并解析，见{@link #query}
+     */
+    public static Observable<Map<String, String>> rxQuery(@NonNull String indexName, @NonNull String value) {
+        return store().rxQuery(indexName, value);
     }
 
     /**
      * 同步储存
      */
     public static boolean save(@NonNull String key, @Nullable String value) {
-        return setItemImpl(getSupplier().get(), key, value);
+        return store().save(key, value);
     }
 
     /**
@@ -99,17 +194,42 @@ public class KVStorage {
      * 此方法会覆盖原来的值
      */
     public static Observable<Boolean> rxSave(@NonNull String key, @Nullable String value) {
-        return Observable.create((ObservableEmitter<Boolean> s) -> {
-            s.onNext(save(key, value));
-            s.onComplete();
-        }).subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread());
+        return store().rxSave(key, value);
+    }
+
+    /**
+     * 同步储存带有效期的值，过期后读取不到，由后台定期删除（见{@link KVStorageOptions.Builder#expirySweepInterval}）
+     * 不经过延迟写队列；之后不带有效期的save、mergeJson会清除有效期
+     * 仅{@link SQLiteStorageEngine}可用
+     *
+     * @param ttlMs 有效期（毫秒）
+     */
+    public static boolean save(@NonNull String key, @Nullable String value, long ttlMs) {
+        return store().save(key, value, ttlMs);
+    }
+
+    /**
+     * 异步存储带有效期的值，见{@link #save(String, String, long)}
+     */
+    public static Observable<Boolean> rxSave(@NonNull String key, @Nullable String value, long ttlMs) {
+        return store().rxSave(key, value, ttlMs);
+    }
+
+    /**
+     * 立即删除所有已过期的值，每256个一个事务
+     * 其余引擎不支持有效期，返回0
+     *
+     * @return 删除的行数
+     */
+    public static int purgeExpired() {
+        return store().purgeExpired();
     }
 
     /**
      * 同步合并json
      */
     public static boolean mergeJson(@NonNull String key, @Nullable String value) throws JSONException {
-        return mergeImpl(getSupplier().get(), key, value);
+        return store().mergeJson(key, value);
     }
 
     /**
@@ -117,145 +237,308 @@ public class KVStorage {
      * 如果value是json类型的，则会与已存在的值合并成新的json值存入数据库
      */
     public static Observable<String> rxMergeJson(@NonNull String key, @Nullable String value) {
-        return Observable.create((ObservableEmitter<String> s) -> {
-            mergeJson(key, value);
-            s.onComplete();
-        }).subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread());
+        return store().rxMergeJson(key, value);
     }
 
     /**
-     * 获取所有key值
+     * 以整数保存，sqlite引擎中为INTEGER，读取时不需要解析字符串
+     * 其余引擎转为十进制字符串保存
      */
-    public static Observable<List<String>> rxGetAllKeys() {
-        return Observable.create((ObservableEmitter<List<String>> s) -> {
-            List<String> keys = new ArrayList<>();
-            String[] columns = {KEY_COLUMN};
-            try (Cursor cursor = getSupplier().get()
-                    .query(TABLE_CATALYST, columns, null, null, null, null, null)) {
-                if (cursor.moveToFirst()) {
-                    do {
-                        keys.add(cursor.getString(0));
-                    } while (cursor.moveToNext());
-                }
-                s.onNext(keys);
-            } catch (Exception e) {
-                s.onError(e);
-            }
-            s.onComplete();
-        }).subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread());
+    public static boolean putLong(@NonNull String key, long value) {
+        return store().putLong(key, value);
     }
 
     /**
-     * 单独或批量删除key
+     * 读取整数，兼容以十进制字符串保存的旧值
+     *
+     * @throws NumberFormatException 值不是整数时
      */
-    public static Observable<Integer> rxRemove(String... keys) {
-        return rxRunInTransaction(sqLiteDatabase -> {
-            int lineCount = 0;
-            for (int keyStart = 0; keyStart < keys.length; keyStart += MAX_SQL_KEYS) {
-                int keyCount = Math.min(keys.length - keyStart, MAX_SQL_KEYS);
-                lineCount += getSupplier().get().delete(
-                        TABLE_CATALYST,
-                        buildKeySelection(keyCount),
-                        buildKeySelectionArgs(keys, keyStart, keyCount));
-            }
-            return lineCount;
-        });
+    public static long getLong(@NonNull String key, long defaultValue) {
+        return store().getLong(key, defaultValue);
     }
 
     /**
-     * 清空数据库
+     * 以浮点数保存，sqlite引擎中为REAL
      */
-    public static Observable<Integer> rxClear() {
-        return Observable.create((ObservableEmitter<Integer> s) -> {
-            s.onNext(getSupplier().clear());
-            s.onComplete();
-        }).subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread());
+    public static boolean putDouble(@NonNull String key, double value) {
+        return store().putDouble(key, value);
+    }
+
+    /**
+     * 读取浮点数，兼容以字符串保存的旧值
+     *
+     * @throws NumberFormatException 值不是数字时
+     */
+    public static double getDouble(@NonNull String key, double defaultValue) {
+        return store().getDouble(key, defaultValue);
+    }
+
+    /**
+     * 以整数1/0保存
+     */
+    public static boolean putBoolean(@NonNull String key, boolean value) {
+        return store().putBoolean(key, value);
+    }
+
+    /**
+     * 读取布尔值，非0的数字、"true"、"1"为true，兼容以字符串保存的旧值
+     */
+    public static boolean getBoolean(@NonNull String key, boolean defaultValue) {
+        return store().getBoolean(key, defaultValue);
+    }
+
+    /**
+     * 以BLOB保存二进制值，不需要Base64编码
+     * 其余引擎转为Base64字符串保存；用{@link #get}读取时返回Base64字符串
+     */
+    public static boolean putBytes(@NonNull String key, @NonNull byte[] value) {
+        return store().putBytes(key, value);
     }
 
     /**
-     * Returns the value of the given key, or null if not found.
+     * 读取二进制值，以字符串保存的值按Base64解码（兼容之前Base64编码后保存的值）
+     *
+     * @return 不存在时返回null
+     * @throws IllegalArgumentException 字符串不是Base64时
      */
     @Nullable
-    private static String getItemImpl(SQLiteDatabase db, String key) {
-        String[] columns = {VALUE_COLUMN};
-        String[] selectionArgs = {key};
-
-        try (Cursor cursor = db.query(
-                TABLE_CATALYST,
-                columns,
-                KEY_COLUMN + "=?",
-                selectionArgs,
-                null,
-                null,
-                null)) {
-            if (!cursor.moveToFirst()) {
-                return null;
-            } else {
-                return cursor.getString(0);
-            }
-        }
+    public static byte[] getBytes(@NonNull String key) {
+        return store().getBytes(key);
     }
 
     /**
-     * 设置给定键的值，如果成功则返回true，否则返回false。
+     * 以输入流读取值，大值直接读取文件，内存占用与值的大小无关；调用方负责关闭
+     * 仅{@link SQLiteStorageEngine}可用
+     *
+     * @return 不存在时返回null
      */
-    private static boolean setItemImpl(SQLiteDatabase db, String key, String value) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(KEY_COLUMN, key);
-        contentValues.put(VALUE_COLUMN, value);
+    @Nullable
+    public static InputStream openValueStream(@NonNull String key) throws IOException {
+        return store().openValueStream(key);
+    }
 
-        long inserted = db.insertWithOnConflict(
-                TABLE_CATALYST,
-                null,
-                contentValues,
-                SQLiteDatabase.CONFLICT_REPLACE);
+    /**
+     * 从输入流写入二进制值，超过512K的值边读边写入单独的文件，不关闭输入流
+     * 仅{@link SQLiteStorageEngine}可用
+     */
+    public static boolean writeValue(@NonNull String key, @NonNull InputStream in) throws IOException {
+        return store().writeValue(key, in);
+    }
 
-        return (-1 != inserted);
+    /**
+     * 异步从输入流写入，见{@link #writeValue}
+     */
+    public static Observable<Boolean> rxWriteValue(@NonNull String key, @NonNull InputStream in) {
+        return store().rxWriteValue(key, in);
     }
 
     /**
-     * Does the actual merge of the (key, value) pair with the value stored in the database.
-     * NB: This assumes that a database lock is already in effect!
+     * 原子地把key对应的整数加上delta，不存在时视为0
+     * sqlite引擎中是一条只匹配数值的 UPDATE ... SET value = CAST(value AS INTEGER) + ?，其余引擎在事务中读-改-写
      *
-     * @return the errorCode of the operation
-     */
-    private static boolean mergeImpl(SQLiteDatabase db, String key, String value)
-            throws JSONException {
-        String oldValue = getItemImpl(db, key);
-        String newValue;
-
-        if (oldValue == null) {
-            newValue = value;
-        } else {
-            JSONObject oldJSON = new JSONObject(oldValue);
-            JSONObject newJSON = new JSONObject(value);
-            deepMergeInto(oldJSON, newJSON);
-            newValue = oldJSON.toString();
-        }
+     * @return 增加后的值
+     * @throws NumberFormatException 当前值不是整数时，值不变
+     */
+    public static long incrementAndGet(@NonNull String key, long delta) {
+        return store().incrementAndGet(key, delta);
+    }
 
-        return setItemImpl(db, key, newValue);
+    /**
+     * 当前值等于expected时写入newValue
+     * sqlite引擎中先读出值和版本号，再用一条 UPDATE ... WHERE version = ? 写入，版本号变化时重新读取比较，
+     * 不开启事务，不阻塞其他写操作；其余引擎在事务中读-比较-写
+     *
+     * @param expected null表示期望不存在
+     * @param newValue null表示删除
+     * @return 当前值不等于expected时返回false
+     */
+    public static boolean compareAndSet(@NonNull String key, @Nullable String expected, @Nullable String newValue) {
+        return store().compareAndSet(key, expected, newValue);
     }
 
     /**
-     * 合并两个{@link JSONObject}。
-     * newJSON对象将通过覆盖其值或合并它们来与oldJSON对象合并（如果两个对象中相同键的值都是{@link JSONObject}类型）。
-     * oldJSON将包含此合并的结果。
+     * 异步比较并设置，见{@link #compareAndSet}
      */
-    private static void deepMergeInto(JSONObject oldJSON, JSONObject newJSON)
-            throws JSONException {
-        Iterator<?> keys = newJSON.keys();
-        while (keys.hasNext()) {
-            String key = (String) keys.next();
+    public static Observable<Boolean> rxCompareAndSet(@NonNull String key, @Nullable String expected, @Nullable String newValue) {
+        return store().rxCompareAndSet(key, expected, newValue);
+    }
 
-            JSONObject newJSONObject = newJSON.optJSONObject(key);
-            JSONObject oldJSONObject = oldJSON.optJSONObject(key);
-            if (newJSONObject != null && oldJSONObject != null) {
-                deepMergeInto(oldJSONObject, newJSONObject);
-                oldJSON.put(key, oldJSONObject);
-            } else {
-                oldJSON.put(key, newJSON.get(key));
-            }
-        }
+    /**
+     * 不存在（或已过期）时写入，sqlite引擎中是一条 INSERT ... WHERE NOT EXISTS
+     *
+     * @return 已存在时返回已存在的值，写入成功时返回null
+     */
+    @Nullable
+    public static String putIfAbsent(@NonNull String key, @NonNull String value) {
+        return store().putIfAbsent(key, value);
+    }
+
+    /**
+     * 用fn根据当前值计算新值并写入，期间值被其他写操作修改时用新的当前值重新调用fn
+     * fn可能被调用多次，不要有副作用
+     *
+     * @param fn 参数为当前值（不存在时为null），返回null表示删除
+     * @return 写入的新值
+     */
+    @Nullable
+    public static String update(@NonNull String key, @NonNull ValueUpdater fn) {
+        return store().update(key, fn);
+    }
+
+    /**
+     * 异步更新，见{@link #update}，新值为null（删除）时不发射值直接完成
+     */
+    public static Observable<String> rxUpdate(@NonNull String key, @NonNull ValueUpdater fn) {
+        return store().rxUpdate(key, fn);
+    }
+
+    /**
+     * 异步批量存储
+     * 所有数据在一个事务中写入，sqlite引擎复用同一条预编译的 INSERT OR REPLACE 语句
+     * 值为null的key会被忽略
+     *
+     * @return 写入的行数
+     */
+    public static Observable<Integer> rxMultiSave(@NonNull Map<String, String> keyValues) {
+        return store().rxMultiSave(keyValues);
+    }
+
+    /**
+     * 异步批量合并json
+     * 与{@link #rxMergeJson}相同的合并规则，所有数据在一个事务中写入
+     *
+     * @return 写入的行数
+     */
+    public static Observable<Integer> rxMultiMergeJson(@NonNull Map<String, String> keyValues) {
+        return store().rxMultiMergeJson(keyValues);
+    }
+
+    /**
+     * 把所有未过期的数据（包括过期时间）以带校验的二进制格式写入out，不关闭out
+     * 在同一时刻的只读快照中按key分页读取，内存中最多一页和一个块；sqlite引擎在WAL模式下导出期间写操作不被阻塞，
+     * 其他情况在一个事务中读取，导出期间其他写操作等待
+     * sqlite引擎的整数、浮点数、二进制值按原类型导出，其余引擎都是字符串
+     * 在调用线程执行，不要在主线程调用
+     *
+     * @return 导出的行数
+     */
+    public static long exportTo(@NonNull OutputStream out) throws IOException {
+        return store().exportTo(out);
+    }
+
+    /**
+     * 异步导出，见{@link #exportTo}
+     */
+    public static Observable<Long> rxExportTo(@NonNull OutputStream out) {
+        return store().rxExportTo(out);
+    }
+
+    /**
+     * 导入{@link #exportTo}导出的数据，同名的key被覆盖，其余key保留
+     */
+    public static long importFrom(@NonNull InputStream in) throws IOException {
+        return store().importFrom(in);
+    }
+
+    /**
+     * 导入{@link #exportTo}导出的数据，同名的key被覆盖，其余key保留
+     * 每8192条一个事务，复用同一条预编译语句；每个块校验通过后才写入，
+     * 数据损坏时抛出IOException，之前的批次已经写入，重新导入是幂等的
+     * 不逐条通知订阅者，导入结束后通知一次{@link KeyChange.Type#UNKNOWN}
+     * 已经过期的数据被跳过；{@link SQLiteStorageEngine}以外的引擎不支持有效期，带有效期的数据导入后不过期
+     * 整数、浮点数、二进制值在sqlite引擎中按原类型写入，其余引擎转为字符串（二进制值为Base64）
+     * 在调用线程执行，不要在主线程调用
+     *
+     * @param deferIndexes 为true时导入前删除sqlite的索引（包括json索引，key过滤器失效），导入完成后一次性重建，
+     *                     适合导入到空的实例；导入期间json索引的查询结果不完整
+     * @return 导入的行数
+     */
+    public static long importFrom(@NonNull InputStream in, boolean deferIndexes) throws IOException {
+        return store().importFrom(in, deferIndexes);
+    }
+
+    /**
+     * 异步导入，见{@link #importFrom(InputStream, boolean)}
+     */
+    public static Observable<Long> rxImportFrom(@NonNull InputStream in, boolean deferIndexes) {
+        return store().rxImportFrom(in, deferIndexes);
+    }
+
+    /**
+     * 同步获取所有key值
+     */
+    @NonNull
+    public static List<String> getAllKeys() {
+        return store().getAllKeys();
+    }
+
+    /**
+     * 获取所有key值
+     */
+    public static Observable<List<String>> rxGetAllKeys() {
+        return store().rxGetAllKeys();
+    }
+
+    /**
+     * 按key升序逐个发射所有key，支持背压，按下游的请求分页读取，每页256个
+     * key很多时用来代替{@link #rxGetAllKeys()}，不会一次把所有key读入内存
+     * 扫描期间的写入是否可见不做保证，但每个key最多发射一次
+     */
+    public static Flowable<String> rxStreamKeys() {
+        return store().rxStreamKeys();
+    }
+
+    /**
+     * 按key升序逐个发射以prefix开头的键值对，支持背压，分页读取，走主键索引
+     *
+     * @param prefix 例如"user:"
+     */
+    public static Flowable<Map.Entry<String, String>> rxScanPrefix(@NonNull String prefix) {
+        return store().rxScanPrefix(prefix);
+    }
+
+    /**
+     * 监听key的变化，代替轮询{@link #rxGet}
+     * save、mergeJson、删除、清空以及事务提交后发射，回滚的修改不会发射；延迟写模式下在落库后发射
+     * 热数据流，只发射订阅之后的变化；下游处理不过来时只保留最新的变化
+     */
+    public static Flowable<KeyChange> rxObserve(@NonNull String key) {
+        return store().rxObserve(key);
+    }
+
+    /**
+     * 监听以prefix开头的key的变化，每次写入（一个事务或一次批量写入）发射一个列表，
+     * 写入1000行也只发射一次
+     */
+    public static Flowable<List<KeyChange>> rxObservePrefix(@NonNull String prefix) {
+        return store().rxObservePrefix(prefix);
+    }
+
+    /**
+     * 同步删除，多个key在一个事务中删除
+     *
+     * @return 删除的行数
+     */
+    public static int remove(String... keys) {
+        return store().remove(keys);
+    }
+
+    /**
+     * 单独或批量删除key
+     */
+    public static Observable<Integer> rxRemove(String... keys) {
+        return store().rxRemove(keys);
+    }
+
+    /**
+     * 清空数据库
+     */
+    public static Observable<Integer> rxClear() {
+        return store().rxClear();
+    }
+
+    public static void clearAndCloseDatabase() {
+        store().clearAndCloseDatabase();
     }
 
     /**
@@ -264,9 +547,7 @@ public class KVStorage {
      * without 'WHERE' and with selectionCount '?'
      */
     public static String buildKeySelection(int selectionCount) {
-        String[] list = new String[selectionCount];
-        Arrays.fill(list, "?");
-        return KEY_COLUMN + " IN (" + TextUtils.join(", ", list) + ")";
+        return SQLiteStorageEngine.buildKeySelection(selectionCount);
     }
 
     /**
@@ -275,132 +556,23 @@ public class KVStorage {
      * to be used in the SQL select statement: WHERE key in (?, ?, ?)
      */
     public static String[] buildKeySelectionArgs(String[] keys, int start, int count) {
-        String[] selectionArgs = new String[count];
-        System.arraycopy(keys, start, selectionArgs, 0, count);
-        return selectionArgs;
-    }
-
-    public static void clearAndCloseDatabase() {
-        getSupplier().clearAndCloseDatabase();
+        return SQLiteStorageEngine.buildKeySelectionArgs(keys, start, count);
     }
 
     public interface TransactionRunnable<T, R> {
         R invoke(T t);
     }
 
-    private static class KVStorageDatabaseSupplier extends SQLiteOpenHelper {
-        @Nullable
-        private SQLiteDatabase mDb;
-        private Context mContext;
-        private long mMaximumDatabaseSize = 6L * 1024L * 1024L; // 6 MB in bytes
-
-        @SuppressLint("StaticFieldLeak")
-        private static KVStorageDatabaseSupplier mInstance = null;
-
-        public static KVStorageDatabaseSupplier getInstance(Context context) {
-            if (mInstance == null) {
-                synchronized (KVStorageDatabaseSupplier.class) {
-                    if (mInstance == null && context != null) {
-                        mInstance = new KVStorageDatabaseSupplier(context.getApplicationContext());
-                    }
-                }
-            }
-            return mInstance;
-        }
-
-        KVStorageDatabaseSupplier(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
-            mContext = context;
-        }
-
-        @Override
-        public void onCreate(SQLiteDatabase db) {
-            db.execSQL(VERSION_TABLE_CREATE);
-        }
-
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion != newVersion) {
-                deleteDatabase();
-                onCreate(db);
-            }
-        }
-
-        /**
-         * Verify the database exists and is open.
-         */
-        private synchronized void ensureDatabase() {
-            if (mDb != null && mDb.isOpen()) {
-                return;
-            }
-            // Sometimes retrieving the database fails. We do 2 retries: first without database deletion
-            // and then with deletion.
-            SQLiteException lastSQLiteException = null;
-            for (int tries = 0; tries < 2; tries++) {
-                try {
-                    if (tries > 0) {
-                        deleteDatabase();
-                    }
-                    mDb = getWritableDatabase();
-                    break;
-                } catch (SQLiteException e) {
-                    lastSQLiteException = e;
-                }
-                // Wait before retrying.
-                try {
-                    Thread.sleep(SLEEP_TIME_MS);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-            if (mDb == null && lastSQLiteException != null) {
-                throw lastSQLiteException;
-            }
-            // This is a sane limit to protect the user from the app storing too much data in the database.
-            // This also protects the database from filling up the disk cache and becoming malformed
-            // (endTransaction() calls will throw an exception, not rollback, and leave the db malformed).
-            if (mDb != null) {
-                mDb.setMaximumSize(mMaximumDatabaseSize);
-            }
-        }
-
+    /**
+     * {@link #update}中根据当前值计算新值
+     */
+    public interface ValueUpdater {
         /**
-         * Create and/or open the database.
+         * @param oldValue 当前值，不存在时为null
+         * @return 新值，null表示删除，返回oldValue本身表示不修改
          */
-        public synchronized SQLiteDatabase get() {
-            ensureDatabase();
-            return mDb;
-        }
-
-        private synchronized void clearAndCloseDatabase() throws RuntimeException {
-            try {
-                clear();
-                closeDatabase();
-            } catch (Exception e) {
-                // Clearing the database has failed, delete it instead.
-                if (deleteDatabase()) {
-                    return;
-                }
-                // Everything failed, throw
-                throw new RuntimeException("Clearing and deleting database " + DATABASE_NAME + " failed");
-            }
-        }
-
-        public synchronized int clear() {
-            return get().delete(TABLE_CATALYST, null, null);
-        }
-
-        private synchronized boolean deleteDatabase() {
-            closeDatabase();
-            return mContext.deleteDatabase(DATABASE_NAME);
-        }
-
-        private synchronized void closeDatabase() {
-            if (mDb != null && mDb.isOpen()) {
-                mDb.close();
-                mDb = null;
-            }
-        }
+        @Nullable
+        String apply(@Nullable String oldValue);
     }
 
 }
@@ -0,0 +1,289 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * KVStorage 各操作的统计：次数、失败次数、延迟分布、读写字符数，以及数据库大小
+ * 通过{@link KVStorage#getMetrics()}获取
+ * <p>
+ * 记录时只做原子累加，不分配对象；耗时超过阈值的操作回调{@link SlowOperationListener}
+ */
+public final class KVStorageMetrics {
+
+    public enum Operation {
+        /**
+         * 从引擎读取单个key（缓存命中不计入，见{@link KVCache}）
+         */
+        GET,
+        MULTI_GET,
+        SET,
+        MULTI_SET,
+        MERGE,
+        INCREMENT,
+        /**
+         * compareAndSet、putIfAbsent、update，包括冲突后的重试
+         */
+        COMPARE_AND_SET,
+        /**
+         * 按json索引查询（{@link KVStorage#rxQuery}）
+         */
+        QUERY,
+        REMOVE,
+        CLEAR,
+        /**
+         * 事务从开始到提交或回滚的时长
+         */
+        TRANSACTION
+    }
+
+    /**
+     * 慢操作回调，在执行操作的线程中调用，不要在回调中做耗时的事情
+     */
+    public interface SlowOperationListener {
+        /**
+         * @param key 单key操作的key，批量操作为null
+         */
+        void onSlowOperation(@NonNull Operation operation, @Nullable String key, long durationNanos);
+    }
+
+    private final Stats[] stats;
+    @Nullable
+    private final SlowOperationListener slowOperationListener;
+    private final long slowThresholdNanos;
+    @Nullable
+    private volatile StorageEngine engine;
+
+    KVStorageMetrics(@Nullable SlowOperationListener slowOperationListener, long slowThresholdMs) {
+        Operation[] operations = Operation.values();
+        this.stats = new Stats[operations.length];
+        for (Operation operation : operations) {
+            stats[operation.ordinal()] = new Stats(operation);
+        }
+        this.slowOperationListener = slowOperationListener;
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMs);
+    }
+
+    void attach(@NonNull StorageEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * 记录一次操作
+     *
+     * @param startNanos 开始时的{@link System#nanoTime()}
+     */
+    void record(@NonNull Operation operation, @Nullable String key, long startNanos,
+                long charsRead, long charsWritten, boolean success) {
+        long duration = System.nanoTime() - startNanos;
+        stats[operation.ordinal()].record(duration, charsRead, charsWritten, success);
+        SlowOperationListener listener = slowOperationListener;
+        if (listener != null && duration >= slowThresholdNanos) {
+            listener.onSlowOperation(operation, key, duration);
+        }
+    }
+
+    @NonNull
+    public Stats get(@NonNull Operation operation) {
+        return stats[operation.ordinal()];
+    }
+
+    /**
+     * 数据库文件大小（字节），仅{@link SQLiteStorageEngine}可用，其余引擎返回-1
+     */
+    public long databaseSize() {
+        StorageEngine engine = this.engine;
+        return engine instanceof SQLiteStorageEngine ? ((SQLiteStorageEngine) engine).getDatabaseSize() : -1;
+    }
+
+    /**
+     * 数据库大小上限（字节），超过后写入失败，仅{@link SQLiteStorageEngine}可用，其余引擎返回-1
+     */
+    public long maxDatabaseSize() {
+        StorageEngine engine = this.engine;
+        return engine instanceof SQLiteStorageEngine ? ((SQLiteStorageEngine) engine).getMaximumDatabaseSize() : -1;
+    }
+
+    public void reset() {
+        for (Stats stat : stats) {
+            stat.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("KVStorageMetrics[databaseSize=")
+                .append(databaseSize()).append('/').append(maxDatabaseSize());
+        for (Stats stat : stats) {
+            if (stat.count() > 0) {
+                builder.append(",\n  ").append(stat);
+            }
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * 单个操作的统计
+     */
+    public static final class Stats {
+        private final Operation operation;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errorCount = new AtomicLong();
+        private final AtomicLong charsRead = new AtomicLong();
+        private final AtomicLong charsWritten = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        Stats(Operation operation) {
+            this.operation = operation;
+        }
+
+        void record(long durationNanos, long read, long written, boolean success) {
+            count.incrementAndGet();
+            if (!success) {
+                errorCount.incrementAndGet();
+            }
+            if (read > 0) {
+                charsRead.addAndGet(read);
+            }
+            if (written > 0) {
+                charsWritten.addAndGet(written);
+            }
+            totalNanos.addAndGet(durationNanos);
+            long max;
+            while (durationNanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, durationNanos)) {
+                // retry
+            }
+            histogram.record(durationNanos);
+        }
+
+        void reset() {
+            count.set(0);
+            errorCount.set(0);
+            charsRead.set(0);
+            charsWritten.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+            histogram.reset();
+        }
+
+        @NonNull
+        public Operation operation() {
+            return operation;
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        public long errorCount() {
+            return errorCount.get();
+        }
+
+        /**
+         * 读取的值的字符数
+         */
+        public long charsRead() {
+            return charsRead.get();
+        }
+
+        /**
+         * 写入的值的字符数
+         */
+        public long charsWritten() {
+            return charsWritten.get();
+        }
+
+        public long totalNanos() {
+            return totalNanos.get();
+        }
+
+        public long maxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * 延迟的百分位数（纳秒），误差约6%
+         *
+         * @param percentile 0~100
+         */
+        public long percentileNanos(double percentile) {
+            return histogram.percentile(percentile);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s[count=%d,errors=%d,read=%d,written=%d,p50=%dus,p99=%dus,max=%dus]",
+                    operation, count(), errorCount(), charsRead(), charsWritten(),
+                    percentileNanos(50) / 1000, percentileNanos(99) / 1000, maxNanos() / 1000);
+        }
+    }
+
+    /**
+     * 对数-线性分桶的延迟直方图（HdrHistogram的简化版），以微秒为单位
+     * 小于32us的值每微秒一个桶，之后每个2的幂区间分为16个桶，相对误差不超过1/16
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40; // 2^44 us，约200天
+        private static final int BUCKET_COUNT = (MAX_EXPONENT + 2) * SUB_BUCKET_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong total = new AtomicLong();
+
+        void record(long durationNanos) {
+            counts.incrementAndGet(indexOf(Math.max(0, durationNanos / 1000)));
+            total.incrementAndGet();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts.set(i, 0);
+            }
+            total.set(0);
+        }
+
+        long percentile(double percentile) {
+            long totalCount = total.get();
+            if (totalCount == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts.get(i);
+                if (seen >= target) {
+                    return lowerBoundOf(i) * 1000;
+                }
+            }
+            return lowerBoundOf(BUCKET_COUNT - 1) * 1000;
+        }
+
+        static int indexOf(long micros) {
+            if (micros < 2 * SUB_BUCKET_COUNT) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+            if (exponent > MAX_EXPONENT) {
+                return BUCKET_COUNT - 1;
+            }
+            return exponent * SUB_BUCKET_COUNT + (int) (micros >>> exponent);
+        }
+
+        static long lowerBoundOf(int index) {
+            if (index < 2 * SUB_BUCKET_COUNT) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKET_COUNT - 1;
+            long mantissa = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+            return mantissa << exponent;
+        }
+    }
+}
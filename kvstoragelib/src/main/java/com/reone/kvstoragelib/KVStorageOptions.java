@@ -0,0 +1,427 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.reactivex.Scheduler;
+
+/**
+ * KVStorage 配置项，通过{@link KVStorage#init(android.content.Context, KVStorageOptions)}传入
+ */
+public final class KVStorageOptions {
+
+    public static final int DEFAULT_CACHE_SIZE = 1024 * 1024; // 1 MB in bytes
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 500;
+    public static final int DEFAULT_FLUSH_THRESHOLD = 256;
+
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 16 * 1024; // 16K chars
+
+    public static final long DEFAULT_SLOW_OPERATION_THRESHOLD_MS = 100;
+
+    public static final long DEFAULT_EXPIRY_SWEEP_INTERVAL_MS = 60 * 1000;
+
+    public static final long DEFAULT_MAX_DATABASE_SIZE = 6L * 1024L * 1024L; // 6 MB in bytes
+
+    /**
+     * PRAGMA synchronous 取值
+     */
+    public enum Synchronous {
+        OFF, NORMAL, FULL
+    }
+
+    final StorageEngine.Factory engineFactory;
+    final int cacheSize;
+    final boolean walEnabled;
+    @Nullable
+    final Synchronous synchronous;
+    final int pageSize;
+    final int sqliteCacheSize;
+    final boolean writeBehind;
+    final long flushIntervalMs;
+    final int flushThreshold;
+    final int compressionThreshold;
+    @Nullable
+    final KVStorageMetrics.SlowOperationListener slowOperationListener;
+    final long slowOperationThresholdMs;
+    @Nullable
+    final Scheduler readScheduler;
+    @Nullable
+    final Scheduler writeScheduler;
+    @Nullable
+    final Scheduler observeScheduler;
+    final boolean observeOnMainThread;
+    final long expirySweepIntervalMs;
+    final boolean warmUp;
+    @NonNull
+    final String[] preloadKeys;
+    @NonNull
+    final String[] preloadPrefixes;
+    final long maxDatabaseSize;
+    final int shards;
+    final boolean keyFilter;
+    /**
+     * 索引名到json字段路径
+     */
+    @NonNull
+    final Map<String, String> jsonIndexes;
+    /**
+     * 实例名，由{@link KVStorage#open}设置，默认实例为null
+     */
+    @Nullable
+    final String name;
+
+    private KVStorageOptions(Builder builder) {
+        this.engineFactory = builder.engineFactory;
+        this.cacheSize = builder.cacheSize;
+        this.walEnabled = builder.walEnabled;
+        this.synchronous = builder.synchronous;
+        this.pageSize = builder.pageSize;
+        this.sqliteCacheSize = builder.sqliteCacheSize;
+        this.writeBehind = builder.writeBehind;
+        this.flushIntervalMs = builder.flushIntervalMs;
+        this.flushThreshold = builder.flushThreshold;
+        this.compressionThreshold = builder.compressionThreshold;
+        this.slowOperationListener = builder.slowOperationListener;
+        this.slowOperationThresholdMs = builder.slowOperationThresholdMs;
+        this.readScheduler = builder.readScheduler;
+        this.writeScheduler = builder.writeScheduler;
+        this.observeScheduler = builder.observeScheduler;
+        this.observeOnMainThread = builder.observeOnMainThread;
+        this.expirySweepIntervalMs = builder.expirySweepIntervalMs;
+        this.warmUp = builder.warmUp;
+        this.preloadKeys = builder.preloadKeys;
+        this.preloadPrefixes = builder.preloadPrefixes;
+        this.maxDatabaseSize = builder.maxDatabaseSize;
+        this.shards = builder.shards;
+        this.keyFilter = builder.keyFilter;
+        this.jsonIndexes = Collections.unmodifiableMap(new LinkedHashMap<>(builder.jsonIndexes));
+        this.name = null;
+    }
+
+    private KVStorageOptions(KVStorageOptions other, @Nullable String name) {
+        this.engineFactory = other.engineFactory;
+        this.cacheSize = other.cacheSize;
+        this.walEnabled = other.walEnabled;
+        this.synchronous = other.synchronous;
+        this.pageSize = other.pageSize;
+        this.sqliteCacheSize = other.sqliteCacheSize;
+        this.writeBehind = other.writeBehind;
+        this.flushIntervalMs = other.flushIntervalMs;
+        this.flushThreshold = other.flushThreshold;
+        this.compressionThreshold = other.compressionThreshold;
+        this.slowOperationListener = other.slowOperationListener;
+        this.slowOperationThresholdMs = other.slowOperationThresholdMs;
+        this.readScheduler = other.readScheduler;
+        this.writeScheduler = other.writeScheduler;
+        this.observeScheduler = other.observeScheduler;
+        this.observeOnMainThread = other.observeOnMainThread;
+        this.expirySweepIntervalMs = other.expirySweepIntervalMs;
+        this.warmUp = other.warmUp;
+        this.preloadKeys = other.preloadKeys;
+        this.preloadPrefixes = other.preloadPrefixes;
+        this.maxDatabaseSize = other.maxDatabaseSize;
+        this.shards = other.shards;
+        this.keyFilter = other.keyFilter;
+        this.jsonIndexes = other.jsonIndexes;
+        this.name = name;
+    }
+
+    /**
+     * 同样的配置，用于名为name的实例
+     */
+    @NonNull
+    KVStorageOptions withName(@Nullable String name) {
+        return new KVStorageOptions(this, name);
+    }
+
+    /**
+     * 实例名，{@link StorageEngine.Factory}按实例名区分文件，默认实例为null
+     */
+    @Nullable
+    public String name() {
+        return name;
+    }
+
+    /**
+     * 按实例名区分的文件名：默认实例为baseName，其余为 baseName-name
+     */
+    @NonNull
+    public String fileName(@NonNull String baseName) {
+        return name == null ? baseName : baseName + "-" + name;
+    }
+
+    public static KVStorageOptions defaults() {
+        return new Builder().build();
+    }
+
+    public static class Builder {
+        private StorageEngine.Factory engineFactory = SQLiteStorageEngine.FACTORY;
+        private int cacheSize = DEFAULT_CACHE_SIZE;
+        private boolean walEnabled = true;
+        @Nullable
+        private Synchronous synchronous = null;
+        private int pageSize = 0;
+        private int sqliteCacheSize = 0;
+        private boolean writeBehind = false;
+        private long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+        private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+        private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        @Nullable
+        private KVStorageMetrics.SlowOperationListener slowOperationListener = null;
+        private long slowOperationThresholdMs = DEFAULT_SLOW_OPERATION_THRESHOLD_MS;
+        @Nullable
+        private Scheduler readScheduler = null;
+        @Nullable
+        private Scheduler writeScheduler = null;
+        @Nullable
+        private Scheduler observeScheduler = null;
+        private boolean observeOnMainThread = true;
+        private long expirySweepIntervalMs = DEFAULT_EXPIRY_SWEEP_INTERVAL_MS;
+        private boolean warmUp = true;
+        private String[] preloadKeys = new String[0];
+        private String[] preloadPrefixes = new String[0];
+        private long maxDatabaseSize = DEFAULT_MAX_DATABASE_SIZE;
+        private int shards = 1;
+        private boolean keyFilter = true;
+        private final Map<String, String> jsonIndexes = new LinkedHashMap<>();
+
+        /**
+         * 存储引擎，默认为{@link SQLiteStorageEngine#FACTORY}
+         */
+        public Builder engine(@NonNull StorageEngine.Factory engineFactory) {
+            this.engineFactory = engineFactory;
+            return this;
+        }
+
+        /**
+         * 内存读缓存的最大字节数，0表示不使用缓存
+         */
+        public Builder cacheSize(int cacheSizeBytes) {
+            if (cacheSizeBytes < 0) {
+                throw new IllegalArgumentException("cacheSize must be >= 0");
+            }
+            this.cacheSize = cacheSizeBytes;
+            return this;
+        }
+
+        /**
+         * 是否使用WAL日志模式，默认开启
+         * 开启后读操作不会被写事务阻塞；关闭则使用回滚日志模式
+         */
+        public Builder walEnabled(boolean walEnabled) {
+            this.walEnabled = walEnabled;
+            return this;
+        }
+
+        /**
+         * PRAGMA synchronous，不设置时使用系统默认值（WAL模式下通常为NORMAL）
+         */
+        public Builder synchronous(@Nullable Synchronous synchronous) {
+            this.synchronous = synchronous;
+            return this;
+        }
+
+        /**
+         * 数据库页大小（字节，2的幂，512~65536），只在新建数据库时生效，0表示使用默认值
+         */
+        public Builder pageSize(int pageSizeBytes) {
+            if (pageSizeBytes != 0 && (pageSizeBytes < 512 || pageSizeBytes > 65536 || Integer.bitCount(pageSizeBytes) != 1)) {
+                throw new IllegalArgumentException("pageSize must be a power of two between 512 and 65536");
+            }
+            this.pageSize = pageSizeBytes;
+            return this;
+        }
+
+        /**
+         * sqlite页缓存大小（KiB），0表示使用默认值
+         */
+        public Builder sqliteCacheSize(int cacheSizeKiB) {
+            if (cacheSizeKiB < 0) {
+                throw new IllegalArgumentException("sqliteCacheSize must be >= 0");
+            }
+            this.sqliteCacheSize = cacheSizeKiB;
+            return this;
+        }
+
+        /**
+         * 开启延迟写模式，使用默认的写入间隔和数量阈值
+         */
+        public Builder writeBehind() {
+            return writeBehind(DEFAULT_FLUSH_INTERVAL_MS, DEFAULT_FLUSH_THRESHOLD);
+        }
+
+        /**
+         * 开启延迟写模式
+         * save/rxSave 只写入内存，同一个key的多次写入会被合并，
+         * 距第一次未落库的写入超过flushIntervalMs，或待写key数量达到flushThreshold时，在一个事务中写入数据库
+         */
+        public Builder writeBehind(long flushIntervalMs, int flushThreshold) {
+            if (flushIntervalMs < 0 || flushThreshold <= 0) {
+                throw new IllegalArgumentException("flushIntervalMs must be >= 0 and flushThreshold must be > 0");
+            }
+            this.writeBehind = true;
+            this.flushIntervalMs = flushIntervalMs;
+            this.flushThreshold = flushThreshold;
+            return this;
+        }
+
+        /**
+         * 值的字符数达到该阈值时用Deflate压缩后保存（仅{@link SQLiteStorageEngine}），0表示不压缩
+         * 读取时自动解压，已有的未压缩数据不受影响
+         */
+        public Builder compressionThreshold(int thresholdChars) {
+            if (thresholdChars < 0) {
+                throw new IllegalArgumentException("compressionThreshold must be >= 0");
+            }
+            this.compressionThreshold = thresholdChars;
+            return this;
+        }
+
+        /**
+         * 慢操作回调，使用默认阈值
+         */
+        public Builder slowOperationListener(@Nullable KVStorageMetrics.SlowOperationListener listener) {
+            return slowOperationListener(DEFAULT_SLOW_OPERATION_THRESHOLD_MS, listener);
+        }
+
+        /**
+         * 耗时达到thresholdMs的操作回调listener，见{@link KVStorageMetrics}
+         */
+        public Builder slowOperationListener(long thresholdMs, @Nullable KVStorageMetrics.SlowOperationListener listener) {
+            if (thresholdMs < 0) {
+                throw new IllegalArgumentException("thresholdMs must be >= 0");
+            }
+            this.slowOperationThresholdMs = thresholdMs;
+            this.slowOperationListener = listener;
+            return this;
+        }
+
+        /**
+         * rx读操作（rxGet、rxMultiGet、rxGetAllKeys、流式扫描）执行的线程
+         * 默认是KVStorage自己的固定大小的读线程池
+         */
+        public Builder readScheduler(@NonNull Scheduler scheduler) {
+            this.readScheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * rx写操作和事务执行的线程，默认是KVStorage自己的单个写线程，写操作按提交顺序执行
+         * 使用默认的单线程时，不要在rxRunInTransaction中阻塞等待其他rx写操作
+         */
+        public Builder writeScheduler(@NonNull Scheduler scheduler) {
+            this.writeScheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * rx方法发射结果的线程，默认是Android主线程
+         * null表示不切换线程，直接在执行操作的线程（或缓存命中时在订阅线程）发射，可用于非Android环境
+         */
+        public Builder observeOn(@Nullable Scheduler scheduler) {
+            this.observeScheduler = scheduler;
+            this.observeOnMainThread = false;
+            return this;
+        }
+
+        /**
+         * 后台删除过期值（{@link KVStorage#save(String, String, long)}）的间隔，在写线程中执行，仅{@link SQLiteStorageEngine}
+         * 0表示不自动删除，过期的值仍然读取不到，可以调用{@link KVStorage#purgeExpired()}删除
+         */
+        public Builder expirySweepInterval(long intervalMs) {
+            if (intervalMs < 0) {
+                throw new IllegalArgumentException("expirySweepInterval must be >= 0");
+            }
+            this.expirySweepIntervalMs = intervalMs;
+            return this;
+        }
+
+        /**
+         * init时是否在读线程中提前打开数据库，默认开启
+         * 打开完成前的读写会等待打开完成，不会在调用线程（例如主线程）中再打开一次
+         */
+        public Builder warmUp(boolean warmUp) {
+            this.warmUp = warmUp;
+            return this;
+        }
+
+        /**
+         * 打开数据库后把这些key读入内存缓存，所有key在一次查询中读取
+         * 需要开启warmUp和内存缓存
+         */
+        public Builder preloadKeys(@NonNull String... keys) {
+            this.preloadKeys = keys;
+            return this;
+        }
+
+        /**
+         * 打开数据库后把以这些前缀开头的key读入内存缓存，每个前缀最多1024个
+         * 需要开启warmUp和内存缓存
+         */
+        public Builder preloadPrefixes(@NonNull String... prefixes) {
+            this.preloadPrefixes = prefixes;
+            return this;
+        }
+
+        /**
+         * 是否在内存中维护key的布隆过滤器，不存在的key大多不需要查询数据库，默认开启，仅{@link SQLiteStorageEngine}
+         * 过滤器保存在数据库文件旁边，下次打开时直接读取；约每个key 10bit，误判率约1%
+         * 没有保存的过滤器时在写线程中构建；新加入的key超过容量后重建，在写线程中定期检查（分片模式下每个分片一个过滤器）
+         * 通过{@link SQLiteStorageEngine#getDatabase()}直接写数据库后过滤器会停用
+         */
+        public Builder keyFilter(boolean enabled) {
+            this.keyFilter = enabled;
+            return this;
+        }
+
+        /**
+         * 声明json字段上的二级索引，之后可以用{@link KVStorage#rxQuery}按字段值查询，仅{@link SQLiteStorageEngine}
+         * path为以.分隔的字段路径，例如 "order.status"；字段为数组时每个元素分别加入索引
+         * 写入json对象时在同一个事务中维护索引；新声明或路径变化的索引在打开数据库时按现有的值建立，不再声明的索引被删除
+         * 同一个数据库文件以第一次打开时的声明为准
+         */
+        public Builder jsonIndex(@NonNull String name, @NonNull String path) {
+            if (name.isEmpty() || path.isEmpty()) {
+                throw new IllegalArgumentException("name and path must not be empty");
+            }
+            this.jsonIndexes.put(name, path);
+            return this;
+        }
+
+        /**
+         * 数据库大小上限（字节），超过后写入失败，仅{@link SQLiteStorageEngine}
+         * 每个实例（分片模式下每个分片）单独计算
+         */
+        public Builder maxDatabaseSize(long maxDatabaseSizeBytes) {
+            if (maxDatabaseSizeBytes <= 0) {
+                throw new IllegalArgumentException("maxDatabaseSize must be > 0");
+            }
+            this.maxDatabaseSize = maxDatabaseSizeBytes;
+            return this;
+        }
+
+        /**
+         * 按key的hash分散到count个文件中（每个分片一个引擎实例，例如 KVStorage-name#shard0），不同分片的写入互不阻塞
+         * 没有指定{@link #writeScheduler}时每个分片一个写线程，只涉及单个分片的rx写操作在其中执行，批量写入按分片拆分后并行执行；
+         * 跨分片的事务、清空等在实例的写线程中执行，与各分片写线程中排队的写操作之间不保证顺序
+         * 事务和批量写入只在单个分片内是原子的；有效期、原始类型等sqlite专用接口不可用
+         * 分片数决定了key所在的文件，有数据之后不能修改，1表示不分片
+         */
+        public Builder shards(int count) {
+            if (count < 1) {
+                throw new IllegalArgumentException("shards must be >= 1");
+            }
+            this.shards = count;
+            return this;
+        }
+
+        public KVStorageOptions build() {
+            return new KVStorageOptions(this);
+        }
+    }
+}
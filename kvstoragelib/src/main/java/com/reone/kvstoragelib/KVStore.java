@@ -0,0 +1,1623 @@
+package com.reone.kvstoragelib;
+
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableTransformer;
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Scheduler;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * 一个独立的键值对存储，有自己的引擎（数据库文件）、内存缓存、延迟写队列、统计和写线程
+ * 默认实例通过{@link KVStorage}的静态方法使用，其余实例通过{@link KVStorage#open(String, KVStorageOptions)}获取
+ * 不同实例之间不共享写锁和数据库大小上限，{@link #rxClear()}只清空本实例
+ */
+public final class KVStore {
+
+    /**
+     * 流式扫描时每次从引擎读取的条数
+     */
+    private static final int SCAN_PAGE_SIZE = 256;
+    /**
+     * 每个事务最多删除的过期值的个数
+     */
+    private static final int EXPIRY_SWEEP_BATCH_SIZE = 256;
+    /**
+     * 维护key过滤器、清理大值文件的间隔，与过期值清理无关，关闭过期值清理时也执行
+     */
+    private static final long MAINTENANCE_INTERVAL_MS = KVStorageOptions.DEFAULT_EXPIRY_SWEEP_INTERVAL_MS;
+    /**
+     * 每个前缀最多预加载的key的个数
+     */
+    private static final int PRELOAD_PREFIX_LIMIT = 1024;
+    /**
+     * 导出时每次从引擎读取的条数，校验块按字节数划分，与页无关
+     */
+    private static final int EXPORT_PAGE_SIZE = 1024;
+    /**
+     * 导入时每个事务写入的条数
+     */
+    private static final int IMPORT_BATCH_SIZE = 8192;
+    private static final String TAG = "KVStorage";
+
+    @Nullable
+    private final String name;
+    private final StorageEngine engine;
+    /**
+     * 预热完成前不为null，见{@link #getEngine()}
+     */
+    @Nullable
+    private volatile CountDownLatch warmUpLatch = null;
+    private final KVCache cache;
+    @Nullable
+    private final WriteBehindQueue writeBehind;
+    private final KVStorageMetrics metrics;
+    private final KeyChangeDispatcher changes = new KeyChangeDispatcher();
+    @Nullable
+    private final ExpirySweeper expirySweeper;
+    /**
+     * 每个sqlite引擎（分片模式下每个sqlite分片）一个定期维护任务
+     */
+    private final List<Disposable> maintenance = new ArrayList<>();
+    private final Scheduler readScheduler;
+    private final Scheduler writeScheduler;
+    /**
+     * 分片模式下每个分片的写线程，单个分片内的写操作在其中执行；其余情况为null，所有写操作在{@link #writeScheduler}中执行
+     */
+    @Nullable
+    private final Scheduler[] shardWriteSchedulers;
+    @Nullable
+    private final Scheduler observeScheduler;
+    private final boolean observeOnMainThread;
+
+    /**
+     * @param name null表示默认实例
+     */
+    KVStore(@NonNull Context appContext, @Nullable String name, @NonNull KVStorageOptions options) {
+        this.name = name;
+        KVStorageOptions storeOptions = options.withName(name);
+        this.engine = options.shards > 1
+                ? ShardedStorageEngine.create(appContext, storeOptions)
+                : options.engineFactory.create(appContext, storeOptions);
+        this.cache = new KVCache(options.cacheSize);
+        this.metrics = new KVStorageMetrics(options.slowOperationListener, options.slowOperationThresholdMs);
+        this.metrics.attach(engine);
+        this.readScheduler = options.readScheduler != null ? options.readScheduler : KVSchedulers.sharedReader();
+        this.writeScheduler = options.writeScheduler != null ? options.writeScheduler : KVSchedulers.newWriter();
+        if (engine instanceof ShardedStorageEngine && options.writeScheduler == null) {
+            this.shardWriteSchedulers = new Scheduler[((ShardedStorageEngine) engine).getShardCount()];
+            for (int i = 0; i < shardWriteSchedulers.length; i++) {
+                shardWriteSchedulers[i] = KVSchedulers.newWriter();
+            }
+        } else {
+            this.shardWriteSchedulers = null;
+        }
+        this.observeScheduler = options.observeScheduler;
+        this.observeOnMainThread = options.observeOnMainThread;
+        this.writeBehind = options.writeBehind
+                ? new WriteBehindQueue(this::writeAllImpl, options.flushIntervalMs, options.flushThreshold)
+                : null;
+        if (engine instanceof SQLiteStorageEngine && options.expirySweepIntervalMs > 0) {
+            this.expirySweeper = new ExpirySweeper(writeScheduler, this::sweepImpl,
+                    options.expirySweepIntervalMs, EXPIRY_SWEEP_BATCH_SIZE);
+            this.expirySweeper.start();
+        } else {
+            this.expirySweeper = null;
+        }
+        if (options.warmUp) {
+            warmUp(options.preloadKeys, options.preloadPrefixes);
+        }
+        scheduleMaintenance(options.keyFilter);
+    }
+
+    /**
+     * 在引擎（分片模式下每个sqlite分片）的写线程中定期执行{@link #maintainImpl}
+     *
+     * @param now 是否立即执行一次：没有保存的过滤器时构建，构建完成前的读取照常查询数据库
+     */
+    private void scheduleMaintenance(boolean now) {
+        int count = engine instanceof ShardedStorageEngine ? ((ShardedStorageEngine) engine).getShardCount() : 1;
+        for (int i = 0; i < count; i++) {
+            StorageEngine target = engine instanceof ShardedStorageEngine ? ((ShardedStorageEngine) engine).getShard(i) : engine;
+            if (!(target instanceof SQLiteStorageEngine)) {
+                continue;
+            }
+            SQLiteStorageEngine sqliteEngine = (SQLiteStorageEngine) target;
+            Scheduler scheduler = shardWriteSchedulers != null ? shardWriteSchedulers[i] : writeScheduler;
+            if (now) {
+                scheduler.scheduleDirect(() -> maintainImpl(sqliteEngine));
+            }
+            maintenance.add(scheduler.schedulePeriodicallyDirect(() -> maintainImpl(sqliteEngine),
+                    MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * 实例名，默认实例为null
+     */
+    @Nullable
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 停止后台任务（过期值清理），延迟写队列中的数据会立即写入
+     */
+    void shutdown() {
+        if (expirySweeper != null) {
+            expirySweeper.stop();
+        }
+        for (Disposable task : maintenance) {
+            task.dispose();
+        }
+        maintenance.clear();
+        flush();
+    }
+
+    /**
+     * 在读线程中打开数据库，并把预加载的key读入缓存
+     * 完成前调用{@link #getEngine()}的线程会等待，避免在主线程中打开数据库或重复打开
+     */
+    private void warmUp(String[] preloadKeys, String[] preloadPrefixes) {
+        CountDownLatch latch = new CountDownLatch(1);
+        warmUpLatch = latch;
+        readScheduler.scheduleDirect(() -> {
+            try {
+                // 读一个不存在的key即可打开底层文件，sqlite引擎会在这里执行onCreate/onUpgrade
+                engine.get("");
+                if (cache.isEnabled() && (preloadKeys.length > 0 || preloadPrefixes.length > 0)) {
+                    preloadImpl(engine, preloadKeys, preloadPrefixes);
+                }
+            } catch (RuntimeException e) {
+                // 之后的读写会再次尝试打开并抛出异常
+                Log.e(TAG, "warm up failed", e);
+            } finally {
+                if (warmUpLatch == latch) {
+                    warmUpLatch = null;
+                }
+                latch.countDown();
+            }
+        });
+    }
+
+    /**
+     * 前缀只查询key，然后和指定的key一起用一次{@link StorageEngine#getAll}读取
+     */
+    private void preloadImpl(StorageEngine engine, String[] preloadKeys, String[] preloadPrefixes) {
+        Set<String> keys = new LinkedHashSet<>(Arrays.asList(preloadKeys));
+        for (String prefix : preloadPrefixes) {
+            for (Map.Entry<String, String> entry : engine.scan(null, prefix, PRELOAD_PREFIX_LIMIT, false)) {
+                keys.add(entry.getKey());
+            }
+        }
+        if (!keys.isEmpty()) {
+            loadAllImpl(engine, keys.toArray(new String[keys.size()]));
+        }
+    }
+
+    /**
+     * 延迟写模式下，立即把待写数据写入数据库
+     */
+    public void flush() {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
+    /**
+     * 内存读缓存，可用于查看命中/未命中/淘汰次数
+     */
+    @NonNull
+    public KVCache getCache() {
+        return cache;
+    }
+
+    /**
+     * 各操作的次数、耗时分布、读写量以及数据库大小
+     */
+    @NonNull
+    public KVStorageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 获取存储引擎，创建实例时开始的预热还没有完成时等待预热完成
+     */
+    @NonNull
+    public StorageEngine getEngine() {
+        CountDownLatch latch = warmUpLatch;
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * 直接操作sqlite的接口只能在{@link SQLiteStorageEngine}上使用
+     */
+    @NonNull
+    private SQLiteStorageEngine requireSQLiteEngine() {
+        StorageEngine engine = getEngine();
+        if (!(engine instanceof SQLiteStorageEngine)) {
+            throw new UnsupportedOperationException("This operation requires SQLiteStorageEngine, current engine is " + engine.getClass().getSimpleName());
+        }
+        return (SQLiteStorageEngine) engine;
+    }
+
+    /**
+     * 开启事务执行
+     * 事务中可以执行任意sql，结束后会清空内存缓存
+     * 无法知道改动了哪些key，提交后所有订阅者收到{@link KeyChange.Type#UNKNOWN}
+     * 仅{@link SQLiteStorageEngine}可用
+     */
+    public <R> Observable<R> rxRunInTransaction(KVStorage.TransactionRunnable<SQLiteDatabase, R> func) {
+        return rxRunInTransaction(this::flush,
+                engine -> {
+                    R result = func.invoke(requireSQLiteEngine().getDatabaseInTransaction());
+                    changes.onUnknown();
+                    return result;
+                },
+                () -> cache.invalidateAll());
+    }
+
+    /**
+     * 开启事务执行，事务开始前执行beforeBegin，事务结束（提交或回滚）后执行afterEnd
+     */
+    private <R> Observable<R> rxRunInTransaction(Runnable beforeBegin,
+                                                        KVStorage.TransactionRunnable<StorageEngine, R> func,
+                                                        Runnable afterEnd) {
+        return Observable.create((ObservableEmitter<R> s) -> {
+            s.onNext(runInTransactionImpl(beforeBegin, func, afterEnd));
+            s.onComplete();
+        }).compose(onWriter());
+    }
+
+    /**
+     * 事务中的key变化在提交、afterEnd执行后一起分发，回滚时丢弃
+     */
+    private <R> R runInTransactionImpl(Runnable beforeBegin,
+                                              KVStorage.TransactionRunnable<StorageEngine, R> func,
+                                              Runnable afterEnd) {
+        return runInTransactionImpl(null, beforeBegin, func, afterEnd);
+    }
+
+    /**
+     * @param keys 事务中读写的key，分片模式下只锁定这些key所在的分片；null表示所有key
+     */
+    private <R> R runInTransactionImpl(@Nullable String[] keys,
+                                       Runnable beforeBegin,
+                                       KVStorage.TransactionRunnable<StorageEngine, R> func,
+                                       Runnable afterEnd) {
+        beforeBegin.run();
+        changes.begin();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            R result = keys == null ? getEngine().runInTransaction(func) : runInTransaction(getEngine(), keys, func);
+            success = true;
+            return result;
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.TRANSACTION, null, start, 0, 0, success);
+            try {
+                afterEnd.run();
+            } finally {
+                changes.end(success);
+            }
+        }
+    }
+
+    /**
+     * 同步获取，先查内存缓存，未命中时查数据库
+     *
+     * @return 不存在时返回null
+     */
+    @Nullable
+    public String get(@NonNull String key) {
+        return getItemImpl(key);
+    }
+
+    /**
+     * 异步获取
+     * 缓存命中时直接返回，不访问数据库也不切换到读线程
+     */
+    public Observable<String> rxGet(@NonNull String key) {
+        return Observable.defer(() -> {
+            String cached = peekItemImpl(key);
+            if (cached != null) {
+                return Observable.just(cached);
+            }
+            return Observable.create((ObservableEmitter<String> s) -> {
+                s.onNext(loadItemImpl(key));
+                s.onComplete();
+            }).subscribeOn(readScheduler);
+        }).compose(observe());
+    }
+
+    /**
+     * 同步批量获取
+     * sqlite引擎中缓存未命中的key按999个一组用 IN 查询
+     *
+     * @return key对应的值，不存在的key不会出现在结果中
+     */
+    @NonNull
+    public Map<String, String> multiGet(@NonNull Collection<String> keys) {
+        return multiGetImpl(keys.toArray(new String[keys.size()]));
+    }
+
+    /**
+     * 异步批量获取
+     */
+    public Observable<Map<String, String>> rxMultiGet(String... keys) {
+        return Observable.create((ObservableEmitter<Map<String, String>> s) -> {
+            s.onNext(multiGetImpl(keys));
+            s.onComplete();
+        }).compose(onReader());
+    }
+
+    /**
+     * 按json索引查询：索引字段等于value的所有键值对，一次走索引的查询，按key排序
+     * 索引由{@link KVStorageOptions.Builder#jsonIndex}声明，字段值按字符串比较（数字、布尔值为其json文本）
+     * 不经过缓存；仅{@link SQLiteStorageEngine}可用
+     *
+     * @throws IllegalArgumentException 没有声明该索引
+     */
+    @NonNull
+    public Map<String, String> query(@NonNull String indexName, @NonNull String value) {
+        SQLiteStorageEngine engine = requireSQLiteEngine();
+        flush();
+        long start = System.nanoTime();
+        Map<String, String> result = null;
+        try {
+            result = engine.query(indexName, value);
+            return result;
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.QUERY, null, start, lengthOf(result), 0, result != null);
+        }
+    }
+
+    /**
+     * 异步按json索引查询，见{@link #query}
+     */
+    public Observable<Map<String, String>> rxQuery(@NonNull String indexName, @NonNull String value) {
+        return Observable.create((ObservableEmitter<Map<String, String>> s) -> {
+            s.onNext(query(indexName, value));
+            s.onComplete();
+        }).compose(onReader());
+    }
+
+    /**
+     * 同步储存
+     */
+    public boolean save(@NonNull String key, @Nullable String value) {
+        if (writeBehind != null) {
+            if (value == null) {
+                return false;
+            }
+            writeBehind.put(key, value);
+            return true;
+        }
+        return setItemImpl(key, value);
+    }
+
+    /**
+     * 异步存储
+     * 此方法会覆盖原来的值
+     */
+    public Observable<Boolean> rxSave(@NonNull String key, @Nullable String value) {
+        return Observable.create((ObservableEmitter<Boolean> s) -> {
+            s.onNext(save(key, value));
+            s.onComplete();
+        }).compose(onWriter(key));
+    }
+
+    /**
+     * 同步储存带有效期的值，过期后读取不到，由后台定期删除（见{@link KVStorageOptions.Builder#expirySweepInterval}）
+     * 不经过延迟写队列；之后不带有效期的save、mergeJson会清除有效期
+     * 仅{@link SQLiteStorageEngine}可用
+     *
+     * @param ttlMs 有效期（毫秒）
+     */
+    public boolean save(@NonNull String key, @Nullable String value, long ttlMs) {
+        if (ttlMs <= 0) {
+            throw new IllegalArgumentException("ttlMs must be > 0");
+        }
+        requireSQLiteEngine();
+        discardPending(key);
+        return setItemImpl(key, value, System.currentTimeMillis() + ttlMs);
+    }
+
+    /**
+     * 异步存储带有效期的值，见{@link #save(String, String, long)}
+     */
+    public Observable<Boolean> rxSave(@NonNull String key, @Nullable String value, long ttlMs) {
+        return Observable.create((ObservableEmitter<Boolean> s) -> {
+            s.onNext(save(key, value, ttlMs));
+            s.onComplete();
+        }).compose(onWriter(key));
+    }
+
+    /**
+     * 立即删除所有已过期的值，每{@link #EXPIRY_SWEEP_BATCH_SIZE}个一个事务
+     * 其余引擎不支持有效期，返回0
+     *
+     * @return 删除的行数
+     */
+    public int purgeExpired() {
+        if (!(getEngine() instanceof SQLiteStorageEngine)) {
+            return 0;
+        }
+        int total = 0;
+        int deleted;
+        do {
+            deleted = purgeExpiredImpl(EXPIRY_SWEEP_BATCH_SIZE);
+            total += deleted;
+        } while (deleted >= EXPIRY_SWEEP_BATCH_SIZE);
+        return total;
+    }
+
+    /**
+     * 同步合并json
+     */
+    public boolean mergeJson(@NonNull String key, @Nullable String value) throws JSONException {
+        flush();
+        return mergeImpl(key, value);
+    }
+
+    /**
+     * 异步存储
+     * 如果value是json类型的，则会与已存在的值合并成新的json值存入数据库
+     */
+    public Observable<String> rxMergeJson(@NonNull String key, @Nullable String value) {
+        return Observable.create((ObservableEmitter<String> s) -> {
+            mergeJson(key, value);
+            s.onComplete();
+        }).compose(onWriter(key));
+    }
+
+    /**
+     * 以整数保存，sqlite引擎中为INTEGER，读取时不需要解析字符串
+     * 其余引擎转为十进制字符串保存
+     */
+    public boolean putLong(@NonNull String key, long value) {
+        return putValueImpl(key, value);
+    }
+
+    /**
+     * 读取整数，兼容以十进制字符串保存的旧值
+     *
+     * @throws NumberFormatException 值不是整数时
+     */
+    public long getLong(@NonNull String key, long defaultValue) {
+        Object value = getValueImpl(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            return Long.parseLong(((String) value).trim());
+        }
+        throw new NumberFormatException("Value of " + key + " is binary");
+    }
+
+    /**
+     * 以浮点数保存，sqlite引擎中为REAL
+     */
+    public boolean putDouble(@NonNull String key, double value) {
+        return putValueImpl(key, value);
+    }
+
+    /**
+     * 读取浮点数，兼容以字符串保存的旧值
+     *
+     * @throws NumberFormatException 值不是数字时
+     */
+    public double getDouble(@NonNull String key, double defaultValue) {
+        Object value = getValueImpl(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            return Double.parseDouble(((String) value).trim());
+        }
+        throw new NumberFormatException("Value of " + key + " is binary");
+    }
+
+    /**
+     * 以整数1/0保存
+     */
+    public boolean putBoolean(@NonNull String key, boolean value) {
+        return putValueImpl(key, value ? 1L : 0L);
+    }
+
+    /**
+     * 读取布尔值，非0的数字、"true"、"1"为true，兼容以字符串保存的旧值
+     */
+    public boolean getBoolean(@NonNull String key, boolean defaultValue) {
+        Object value = getValueImpl(key);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+        }
+        if (value instanceof String) {
+            String text = ((String) value).trim();
+            return "true".equalsIgnoreCase(text) || "1".equals(text);
+        }
+        return defaultValue;
+    }
+
+    /**
+     * 以BLOB保存二进制值，不需要Base64编码
+     * 其余引擎转为Base64字符串保存；用{@link #get}读取时返回Base64字符串
+     */
+    public boolean putBytes(@NonNull String key, @NonNull byte[] value) {
+        return putValueImpl(key, value);
+    }
+
+    /**
+     * 读取二进制值，以字符串保存的值按Base64解码（兼容之前Base64编码后保存的值）
+     *
+     * @return 不存在时返回null
+     * @throws IllegalArgumentException 字符串不是Base64时
+     */
+    @Nullable
+    public byte[] getBytes(@NonNull String key) {
+        Object value = getValueImpl(key);
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        return Base64.decode(value.toString(), Base64.DEFAULT);
+    }
+
+    /**
+     * 以输入流读取值，不经过缓存；保存在单独文件中的大值直接读取文件，内存占用与值的大小无关
+     * 字符串为UTF-8字节，二进制值为原始字节；调用方负责关闭
+     * 仅{@link SQLiteStorageEngine}可用，在调用线程执行
+     *
+     * @return 不存在时返回null
+     */
+    @Nullable
+    public InputStream openValueStream(@NonNull String key) throws IOException {
+        SQLiteStorageEngine engine = requireSQLiteEngine();
+        flush();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            InputStream in = engine.openValueStream(key);
+            success = true;
+            return in;
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.GET, key, start, 0, 0, success);
+        }
+    }
+
+    /**
+     * 从输入流写入二进制值，读取方式与{@link #putBytes}相同，不关闭输入流
+     * 超过512K的值边读边写入数据库旁边的单独文件，行中只保存文件清单，内存中最多一个缓冲区；
+     * 不再被引用的文件由后台定期删除
+     * 不经过延迟写队列，通知的{@link KeyChange#value()}为null；仅{@link SQLiteStorageEngine}可用，在调用线程执行
+     */
+    public boolean writeValue(@NonNull String key, @NonNull InputStream in) throws IOException {
+        SQLiteStorageEngine engine = requireSQLiteEngine();
+        discardPending(key);
+        cache.invalidate(key);
+        long start = System.nanoTime();
+        boolean inserted = false;
+        try {
+            inserted = engine.writeValue(key, in);
+        } finally {
+            cache.invalidate(key);
+            metrics.record(KVStorageMetrics.Operation.SET, key, start, 0, 0, inserted);
+        }
+        if (inserted) {
+            changes.onSet(key, null);
+        }
+        return inserted;
+    }
+
+    /**
+     * 异步从输入流写入，见{@link #writeValue}
+     */
+    public Observable<Boolean> rxWriteValue(@NonNull String key, @NonNull InputStream in) {
+        return Observable.create((ObservableEmitter<Boolean> s) -> {
+            s.onNext(writeValue(key, in));
+            s.onComplete();
+        }).compose(onWriter(key));
+    }
+
+    /**
+     * 原子地把key对应的整数加上delta，不存在时视为0
+     * sqlite引擎中是一条只匹配数值的 UPDATE ... SET value = CAST(value AS INTEGER) + ?，其余引擎在事务中读-改-写
+     *
+     * @return 增加后的值
+     * @throws NumberFormatException 当前值不是整数时，值不变
+     */
+    public long incrementAndGet(@NonNull String key, long delta) {
+        // 延迟写队列中未落库的值需要先写入
+        flush();
+        StorageEngine engine = getEngine();
+        cache.invalidate(key);
+        long start = System.nanoTime();
+        boolean success = false;
+        long result;
+        try {
+            if (engine instanceof SQLiteStorageEngine) {
+                result = ((SQLiteStorageEngine) engine).incrementAndGet(key, delta);
+            } else {
+                result = runInTransaction(engine, new String[]{key}, e -> {
+                    String old = e.get(key);
+                    long value = (old == null ? 0 : Long.parseLong(old.trim())) + delta;
+                    e.put(key, Long.toString(value));
+                    return value;
+                });
+            }
+            success = true;
+        } finally {
+            cache.invalidate(key);
+            metrics.record(KVStorageMetrics.Operation.INCREMENT, key, start, 0, 0, success);
+        }
+        changes.onSet(key, Long.toString(result));
+        return result;
+    }
+
+    /**
+     * 当前值等于expected时写入newValue
+     * sqlite引擎中先读出值和版本号，再用一条 UPDATE ... WHERE version = ? 写入，版本号变化时重新读取比较，
+     * 不开启事务，不阻塞其他写操作；其余引擎在事务中读-比较-写
+     *
+     * @param expected null表示期望不存在
+     * @param newValue null表示删除
+     * @return 当前值不等于expected时返回false
+     */
+    public boolean compareAndSet(@NonNull String key, @Nullable String expected, @Nullable String newValue) {
+        boolean[] matched = new boolean[1];
+        conditionalWrite(key, old -> {
+            matched[0] = equals(old, expected);
+            return matched[0] ? newValue : old;
+        });
+        return matched[0];
+    }
+
+    /**
+     * 异步比较并设置，见{@link #compareAndSet}
+     */
+    public Observable<Boolean> rxCompareAndSet(@NonNull String key, @Nullable String expected, @Nullable String newValue) {
+        return Observable.create((ObservableEmitter<Boolean> s) -> {
+            s.onNext(compareAndSet(key, expected, newValue));
+            s.onComplete();
+        }).compose(onWriter(key));
+    }
+
+    /**
+     * 不存在（或已过期）时写入，sqlite引擎中是一条 INSERT ... WHERE NOT EXISTS
+     *
+     * @return 已存在时返回已存在的值，写入成功时返回null
+     */
+    @Nullable
+    public String putIfAbsent(@NonNull String key, @NonNull String value) {
+        String[] existing = new String[1];
+        conditionalWrite(key, old -> {
+            existing[0] = old;
+            return old == null ? value : old;
+        });
+        return existing[0];
+    }
+
+    /**
+     * 用fn根据当前值计算新值并写入，期间值被其他写操作修改时用新的当前值重新调用fn
+     * fn可能被调用多次，不要有副作用
+     *
+     * @param fn 参数为当前值（不存在时为null），返回null表示删除
+     * @return 写入的新值
+     */
+    @Nullable
+    public String update(@NonNull String key, @NonNull KVStorage.ValueUpdater fn) {
+        return conditionalWrite(key, fn);
+    }
+
+    /**
+     * 异步更新，见{@link #update}，新值为null（删除）时不发射值直接完成
+     */
+    public Observable<String> rxUpdate(@NonNull String key, @NonNull KVStorage.ValueUpdater fn) {
+        return Observable.create((ObservableEmitter<String> s) -> {
+            String value = update(key, fn);
+            if (value != null) {
+                s.onNext(value);
+            }
+            s.onComplete();
+        }).compose(onWriter(key));
+    }
+
+    /**
+     * 异步批量存储
+     * 所有数据在一个事务中写入，sqlite引擎复用同一条预编译的 INSERT OR REPLACE 语句
+     * 值为null的key会被忽略
+     *
+     * @return 写入的行数
+     */
+    public Observable<Integer> rxMultiSave(@NonNull Map<String, String> keyValues) {
+        String[] allKeys = keyValues.keySet().toArray(new String[keyValues.size()]);
+        return rxWriteByShard(allKeys, keys -> runInTransactionImpl(keys, () -> discardPending(keys),
+                engine -> putAllImpl(engine, subMap(keyValues, keys)),
+                () -> cache.invalidate(keys)));
+    }
+
+    /**
+     * 异步批量合并json
+     * 与{@link #rxMergeJson}相同的合并规则，所有数据在一个事务中写入
+     *
+     * @return 写入的行数
+     */
+    public Observable<Integer> rxMultiMergeJson(@NonNull Map<String, String> keyValues) {
+        String[] allKeys = keyValues.keySet().toArray(new String[keyValues.size()]);
+        return rxWriteByShard(allKeys, keys -> runInTransactionImpl(keys, this::flush, engine -> {
+            Map<String, String> merged = new LinkedHashMap<>(keys.length);
+            try {
+                for (Map.Entry<String, String> entry : subMap(keyValues, keys).entrySet()) {
+                    if (entry.getValue() != null) {
+                        merged.put(entry.getKey(), JsonMerge.merge(getItemImpl(entry.getKey()), entry.getValue()));
+                    }
+                }
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+            return putAllImpl(engine, merged);
+        }, () -> cache.invalidate(keys)));
+    }
+
+    /**
+     * 把所有未过期的数据（包括过期时间）以带校验的二进制格式写入out，不关闭out
+     * 在同一时刻的只读快照中按key分页读取，内存中最多一页和一个块；sqlite引擎在WAL模式下导出期间写操作不被阻塞，
+     * 其他情况在一个事务中读取，导出期间其他写操作等待
+     * sqlite引擎的整数、浮点数、二进制值按原类型导出，其余引擎都是字符串
+     * 在调用线程执行，不要在主线程调用
+     *
+     * @return 导出的行数
+     */
+    public long exportTo(@NonNull OutputStream out) throws IOException {
+        flush();
+        Snapshot.Writer writer = new Snapshot.Writer(out);
+        try {
+            runInSnapshot(getEngine(), engine -> {
+                try {
+                    exportImpl(engine, writer);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        return writer.finish();
+    }
+
+    /**
+     * 异步导出，见{@link #exportTo}
+     */
+    public Observable<Long> rxExportTo(@NonNull OutputStream out) {
+        return Observable.create((ObservableEmitter<Long> s) -> {
+            s.onNext(exportTo(out));
+            s.onComplete();
+        }).compose(onReader());
+    }
+
+    /**
+     * 导入{@link #exportTo}导出的数据，同名的key被覆盖，其余key保留
+     */
+    public long importFrom(@NonNull InputStream in) throws IOException {
+        return importFrom(in, false);
+    }
+
+    /**
+     * 导入{@link #exportTo}导出的数据，同名的key被覆盖，其余key保留
+     * 每{@link #IMPORT_BATCH_SIZE}条一个事务，复用同一条预编译语句；每个块校验通过后才写入，
+     * 数据损坏时抛出IOException，之前的批次已经写入，重新导入是幂等的
+     * 不逐条通知订阅者，导入结束后通知一次{@link KeyChange.Type#UNKNOWN}
+     * 已经过期的数据被跳过；{@link SQLiteStorageEngine}以外的引擎不支持有效期，带有效期的数据导入后不过期
+     * 整数、浮点数、二进制值在sqlite引擎中按原类型写入，其余引擎转为字符串（二进制值为Base64）
+     * 在调用线程执行，不要在主线程调用
+     *
+     * @param deferIndexes 为true时导入前删除sqlite的索引（包括json索引，key过滤器失效），导入完成后一次性重建，
+     *                     适合导入到空的实例；导入期间json索引的查询结果不完整
+     * @return 导入的行数
+     */
+    public long importFrom(@NonNull InputStream in, boolean deferIndexes) throws IOException {
+        flush();
+        StorageEngine engine = getEngine();
+        Snapshot.Reader reader = new Snapshot.Reader(in);
+        SQLiteStorageEngine sqliteEngine = deferIndexes && engine instanceof SQLiteStorageEngine
+                ? (SQLiteStorageEngine) engine
+                : null;
+        if (sqliteEngine != null) {
+            sqliteEngine.dropIndexes();
+        }
+        long total = 0;
+        try {
+            Map<String, Object> batch = new LinkedHashMap<>();
+            Map<String, Long> expiries = new HashMap<>();
+            boolean more;
+            do {
+                more = reader.readBlock(batch, expiries);
+                if (batch.size() >= IMPORT_BATCH_SIZE || (!more && !batch.isEmpty())) {
+                    total += importBatchImpl(engine, batch, expiries);
+                    batch.clear();
+                    expiries.clear();
+                }
+            } while (more);
+        } finally {
+            if (sqliteEngine != null) {
+                sqliteEngine.createIndexes();
+            }
+            cache.invalidateAll();
+            if (total > 0) {
+                changes.onUnknown();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 异步导入，见{@link #importFrom(InputStream, boolean)}
+     */
+    public Observable<Long> rxImportFrom(@NonNull InputStream in, boolean deferIndexes) {
+        return Observable.create((ObservableEmitter<Long> s) -> {
+            s.onNext(importFrom(in, deferIndexes));
+            s.onComplete();
+        }).compose(onWriter());
+    }
+
+    /**
+     * 同步获取所有key值
+     */
+    @NonNull
+    public List<String> getAllKeys() {
+        flush();
+        return getEngine().keys();
+    }
+
+    /**
+     * 获取所有key值
+     */
+    public Observable<List<String>> rxGetAllKeys() {
+        return Observable.create((ObservableEmitter<List<String>> s) -> {
+            try {
+                s.onNext(getAllKeys());
+            } catch (Exception e) {
+                s.onError(e);
+            }
+            s.onComplete();
+        }).compose(onReader());
+    }
+
+    /**
+     * 按key升序逐个发射所有key，支持背压，按下游的请求分页读取，每页{@link #SCAN_PAGE_SIZE}个
+     * key很多时用来代替{@link #rxGetAllKeys()}，不会一次把所有key读入内存
+     * 扫描期间的写入是否可见不做保证，但每个key最多发射一次
+     */
+    public Flowable<String> rxStreamKeys() {
+        return scanImpl(null, false).map(Map.Entry::getKey);
+    }
+
+    /**
+     * 按key升序逐个发射以prefix开头的键值对，支持背压，分页读取，走主键索引
+     *
+     * @param prefix 例如"user:"
+     */
+    public Flowable<Map.Entry<String, String>> rxScanPrefix(@NonNull String prefix) {
+        return scanImpl(prefix, true);
+    }
+
+    /**
+     * 监听key的变化，代替轮询{@link #rxGet}
+     * save、mergeJson、删除、清空以及事务提交后发射，回滚的修改不会发射；延迟写模式下在落库后发射
+     * 热数据流，只发射订阅之后的变化；下游处理不过来时只保留最新的变化
+     */
+    public Flowable<KeyChange> rxObserve(@NonNull String key) {
+        return changes.observe(key).compose(observeFlowable());
+    }
+
+    /**
+     * 监听以prefix开头的key的变化，每次写入（一个事务或一次批量写入）发射一个列表，
+     * 写入1000行也只发射一次
+     */
+    public Flowable<List<KeyChange>> rxObservePrefix(@NonNull String prefix) {
+        return changes.observePrefix(prefix).compose(observeFlowable());
+    }
+
+    /**
+     * keyset分页：每页从上一页的最后一个key之后开始，引擎返回空页时结束
+     */
+    private Flowable<Map.Entry<String, String>> scanImpl(@Nullable String prefix, boolean withValues) {
+        return Flowable.generate(() -> {
+            flush();
+            return new ScanCursor();
+        }, (ScanCursor cursor, Emitter<Map.Entry<String, String>> emitter) -> {
+            if (cursor.page == null || !cursor.page.hasNext()) {
+                List<Map.Entry<String, String>> page = getEngine().scan(cursor.lastKey, prefix, SCAN_PAGE_SIZE, withValues);
+                if (page.isEmpty()) {
+                    emitter.onComplete();
+                    return;
+                }
+                cursor.page = page.iterator();
+            }
+            Map.Entry<String, String> entry = cursor.page.next();
+            cursor.lastKey = entry.getKey();
+            emitter.onNext(entry);
+        }).compose(onReaderFlowable());
+    }
+
+    /**
+     * 同步删除，多个key在一个事务中删除
+     *
+     * @return 删除的行数
+     */
+    public int remove(String... keys) {
+        return runInTransactionImpl(keys, () -> discardPending(keys),
+                engine -> {
+                    long start = System.nanoTime();
+                    boolean success = false;
+                    try {
+                        int lineCount = engine.delete(keys);
+                        success = true;
+                        if (lineCount > 0) {
+                            changes.onRemove(keys);
+                        }
+                        return lineCount;
+                    } finally {
+                        metrics.record(KVStorageMetrics.Operation.REMOVE, keys.length == 1 ? keys[0] : null, start, 0, 0, success);
+                    }
+                },
+                () -> cache.invalidate(keys));
+    }
+
+    /**
+     * 单独或批量删除key
+     */
+    public Observable<Integer> rxRemove(String... keys) {
+        return rxWriteByShard(keys, this::remove);
+    }
+
+    /**
+     * 清空数据库
+     */
+    public Observable<Integer> rxClear() {
+        return Observable.create((ObservableEmitter<Integer> s) -> {
+            discardAllPending();
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                s.onNext(getEngine().clear());
+                success = true;
+            } finally {
+                metrics.record(KVStorageMetrics.Operation.CLEAR, null, start, 0, 0, success);
+                cache.invalidateAll();
+            }
+            changes.onClear();
+            s.onComplete();
+        }).compose(onWriter());
+    }
+
+    /**
+     * 在读线程执行，在{@link KVStorageOptions.Builder#observeOn}指定的线程发射
+     */
+    private <T> ObservableTransformer<T, T> onReader() {
+        return upstream -> upstream.subscribeOn(readScheduler).compose(observe());
+    }
+
+    private <T> FlowableTransformer<T, T> onReaderFlowable() {
+        return upstream -> upstream.subscribeOn(readScheduler).compose(observeFlowable());
+    }
+
+    private <T> FlowableTransformer<T, T> observeFlowable() {
+        return upstream -> {
+            Scheduler scheduler = observeScheduler();
+            return scheduler == null ? upstream : upstream.observeOn(scheduler);
+        };
+    }
+
+    /**
+     * 在写线程执行，在{@link KVStorageOptions.Builder#observeOn}指定的线程发射
+     */
+    private <T> ObservableTransformer<T, T> onWriter() {
+        return upstream -> upstream.subscribeOn(writeScheduler).compose(observe());
+    }
+
+    /**
+     * 只写key的操作：分片模式下在key所在分片的写线程执行，不同分片的写操作互不阻塞
+     */
+    private <T> ObservableTransformer<T, T> onWriter(@NonNull String key) {
+        return upstream -> upstream.subscribeOn(shardWriteSchedulers != null
+                ? shardWriteSchedulers[((ShardedStorageEngine) engine).shardOf(key)]
+                : writeScheduler).compose(observe());
+    }
+
+    /**
+     * 批量写操作：分片模式下按分片拆分，每组在所在分片的写线程中执行（一组一个事务），结果相加；
+     * 同一个key的写操作仍在同一个线程中按提交顺序执行
+     */
+    private Observable<Integer> rxWriteByShard(String[] keys, ShardWrite write) {
+        if (shardWriteSchedulers == null) {
+            return Observable.create((ObservableEmitter<Integer> s) -> {
+                s.onNext(write.run(keys));
+                s.onComplete();
+            }).compose(onWriter());
+        }
+        List<List<String>> groups = ((ShardedStorageEngine) engine).groupKeys(keys);
+        List<Observable<Integer>> parts = new ArrayList<>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            List<String> group = groups.get(i);
+            if (!group.isEmpty()) {
+                String[] groupKeys = group.toArray(new String[group.size()]);
+                parts.add(Observable.create((ObservableEmitter<Integer> s) -> {
+                    s.onNext(write.run(groupKeys));
+                    s.onComplete();
+                }).subscribeOn(shardWriteSchedulers[i]));
+            }
+        }
+        return Observable.merge(parts)
+                .reduce(0, (a, b) -> a + b)
+                .toObservable()
+                .compose(observe());
+    }
+
+    private interface ShardWrite {
+        int run(String[] keys) throws Exception;
+    }
+
+    /**
+     * 分片模式下只涉及keys的事务只锁定keys所在的分片
+     */
+    private static <R> R runInTransaction(StorageEngine engine, String[] keys, KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        return engine instanceof ShardedStorageEngine
+                ? ((ShardedStorageEngine) engine).runInTransaction(keys, func)
+                : engine.runInTransaction(func);
+    }
+
+    private static <R> R runInSnapshot(StorageEngine engine, KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        if (engine instanceof SQLiteStorageEngine) {
+            return ((SQLiteStorageEngine) engine).runInSnapshot(func);
+        }
+        if (engine instanceof ShardedStorageEngine) {
+            return ((ShardedStorageEngine) engine).runInSnapshot(func);
+        }
+        return engine.runInTransaction(func);
+    }
+
+    private static Map<String, String> subMap(Map<String, String> keyValues, String[] keys) {
+        if (keys.length == keyValues.size()) {
+            return keyValues;
+        }
+        Map<String, String> result = new LinkedHashMap<>(keys.length);
+        for (String key : keys) {
+            result.put(key, keyValues.get(key));
+        }
+        return result;
+    }
+
+    private <T> ObservableTransformer<T, T> observe() {
+        return upstream -> {
+            Scheduler scheduler = observeScheduler();
+            return scheduler == null ? upstream : upstream.observeOn(scheduler);
+        };
+    }
+
+    @Nullable
+    private Scheduler observeScheduler() {
+        return observeOnMainThread ? AndroidSchedulers.mainThread() : observeScheduler;
+    }
+
+    /**
+     * Returns the value of the given key, or null if not found.
+     * 先查内存缓存，未命中时再查数据库
+     */
+    @Nullable
+    private String getItemImpl(String key) {
+        String cached = peekItemImpl(key);
+        if (cached != null) {
+            return cached;
+        }
+        return loadItemImpl(key);
+    }
+
+    /**
+     * 只从内存中查找：先查延迟写队列中还未落库的值，再查缓存
+     */
+    @Nullable
+    private String peekItemImpl(String key) {
+        if (writeBehind != null) {
+            String pending = writeBehind.get(key);
+            if (pending != null) {
+                return pending;
+            }
+        }
+        return cache.get(key);
+    }
+
+    /**
+     * 从数据库查询并放入缓存，带有效期的值在缓存中同样会过期
+     */
+    @Nullable
+    private String loadItemImpl(String key) {
+        StorageEngine engine = getEngine();
+        Map<String, Long> expiries = engine instanceof SQLiteStorageEngine ? new HashMap<>(2) : null;
+        long generation = cache.beginLoad();
+        long start = System.nanoTime();
+        String value = null;
+        boolean success = false;
+        try {
+            value = expiries != null ? ((SQLiteStorageEngine) engine).get(key, expiries) : engine.get(key);
+            success = true;
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.GET, key, start, value == null ? 0 : value.length(), 0, success);
+        }
+        cache.putIfUnchanged(key, value, generation, expiries == null ? null : expiries.get(key));
+        return value;
+    }
+
+    private Map<String, String> multiGetImpl(String[] keys) {
+        Map<String, String> result = new LinkedHashMap<>(keys.length);
+        List<String> missKeys = new ArrayList<>();
+        for (String key : keys) {
+            String cached = peekItemImpl(key);
+            if (cached != null) {
+                result.put(key, cached);
+            } else {
+                missKeys.add(key);
+            }
+        }
+        if (missKeys.isEmpty()) {
+            return result;
+        }
+        result.putAll(loadAllImpl(getEngine(), missKeys.toArray(new String[missKeys.size()])));
+        return result;
+    }
+
+    /**
+     * 从数据库批量查询并放入缓存
+     */
+    private Map<String, String> loadAllImpl(StorageEngine engine, String[] keys) {
+        Map<String, Long> expiries = engine instanceof SQLiteStorageEngine ? new HashMap<>() : null;
+        long generation = cache.beginLoad();
+        long start = System.nanoTime();
+        Map<String, String> loaded = null;
+        try {
+            loaded = expiries != null
+                    ? ((SQLiteStorageEngine) engine).getAll(keys, expiries)
+                    : engine.getAll(keys);
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.MULTI_GET, null, start, lengthOf(loaded), 0, loaded != null);
+        }
+        for (Map.Entry<String, String> entry : loaded.entrySet()) {
+            cache.putIfUnchanged(entry.getKey(), entry.getValue(), generation,
+                    expiries == null ? null : expiries.get(entry.getKey()));
+        }
+        return loaded;
+    }
+
+    private boolean setItemImpl(String key, String value) {
+        return setItemImpl(key, value, 0);
+    }
+
+    /**
+     * 设置给定键的值，如果成功则返回true，否则返回false。
+     * 事务外写入成功后回写缓存，事务中只使缓存失效（事务可能回滚）
+     *
+     * @param expiresAt 过期时间，0表示不过期，大于0时引擎必须是{@link SQLiteStorageEngine}
+     */
+    private boolean setItemImpl(String key, String value, long expiresAt) {
+        StorageEngine engine = getEngine();
+        long generation = cache.invalidate(key);
+        long start = System.nanoTime();
+        boolean inserted = false;
+        try {
+            inserted = expiresAt > 0
+                    ? ((SQLiteStorageEngine) engine).put(key, value, expiresAt)
+                    : engine.put(key, value);
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.SET, key, start, 0, value == null ? 0 : value.length(), inserted);
+        }
+        if (inserted && !engine.inTransaction()) {
+            cache.putAfterWrite(key, value, generation, expiresAt > 0 ? expiresAt : null);
+        }
+        if (inserted && value != null) {
+            changes.onSet(key, value);
+        }
+        return inserted;
+    }
+
+    /**
+     * 按原始类型读取：先查延迟写队列，再查引擎，不经过字符串缓存
+     *
+     * @return sqlite引擎中为Long、Double、String或byte[]，其余引擎为String
+     */
+    @Nullable
+    private Object getValueImpl(String key) {
+        if (writeBehind != null) {
+            String pending = writeBehind.get(key);
+            if (pending != null) {
+                return pending;
+            }
+        }
+        StorageEngine engine = getEngine();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Object value = engine instanceof SQLiteStorageEngine
+                    ? ((SQLiteStorageEngine) engine).getValue(key)
+                    : engine.get(key);
+            success = true;
+            return value;
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.GET, key, start, 0, 0, success);
+        }
+    }
+
+    /**
+     * 以原始类型写入（Long、Double、byte[]），其余引擎转为字符串
+     * 写入前后都使缓存失效，之后的{@link #get}从引擎读取字符串形式
+     */
+    private boolean putValueImpl(String key, Object value) {
+        discardPending(key);
+        StorageEngine engine = getEngine();
+        cache.invalidate(key);
+        long start = System.nanoTime();
+        boolean inserted = false;
+        String text = toText(value);
+        try {
+            if (engine instanceof SQLiteStorageEngine) {
+                inserted = ((SQLiteStorageEngine) engine).putValue(key, value);
+            } else {
+                inserted = engine.put(key, text);
+            }
+        } finally {
+            cache.invalidate(key);
+            metrics.record(KVStorageMetrics.Operation.SET, key, start, 0, 0, inserted);
+        }
+        if (inserted) {
+            changes.onSet(key, text);
+        }
+        return inserted;
+    }
+
+    /**
+     * 条件写入的公共实现，fn返回传入的同一个对象表示不写入
+     * sqlite引擎中每次尝试都是一条带版本号条件的语句，重试在事务之外
+     *
+     * @return 写入后的值，没有写入时返回当前值
+     */
+    @Nullable
+    private String conditionalWrite(String key, KVStorage.ValueUpdater fn) {
+        // 延迟写队列中未落库的值需要先写入
+        flush();
+        StorageEngine engine = getEngine();
+        cache.invalidate(key);
+        long start = System.nanoTime();
+        boolean success = false;
+        String[] result = new String[1];
+        boolean written = false;
+        try {
+            if (engine instanceof SQLiteStorageEngine) {
+                SQLiteStorageEngine sqliteEngine = (SQLiteStorageEngine) engine;
+                boolean retry;
+                do {
+                    SQLiteStorageEngine.VersionedValue current = sqliteEngine.getVersioned(key);
+                    String old = current == null ? null : current.value;
+                    result[0] = fn.apply(old);
+                    written = result[0] != old;
+                    if (!written) {
+                        retry = false;
+                    } else if (current == null) {
+                        retry = !sqliteEngine.insertIfAbsent(key, result[0]);
+                    } else {
+                        retry = !sqliteEngine.replaceIfVersion(key, result[0], current.version);
+                    }
+                } while (retry);
+            } else {
+                written = runInTransaction(engine, new String[]{key}, e -> {
+                    String old = e.get(key);
+                    result[0] = fn.apply(old);
+                    if (result[0] == old) {
+                        return false;
+                    }
+                    if (result[0] == null) {
+                        e.delete(key);
+                    } else {
+                        e.put(key, result[0]);
+                    }
+                    return true;
+                });
+            }
+            success = true;
+        } finally {
+            cache.invalidate(key);
+            metrics.record(KVStorageMetrics.Operation.COMPARE_AND_SET, key, start, 0,
+                    written && result[0] != null ? result[0].length() : 0, success);
+        }
+        if (written) {
+            if (result[0] == null) {
+                changes.onRemove(key);
+            } else {
+                changes.onSet(key, result[0]);
+            }
+        }
+        return result[0];
+    }
+
+    private static boolean equals(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * 后台定期执行：删除过期的值
+     */
+    private int sweepImpl(int limit) {
+        return purgeExpiredImpl(limit);
+    }
+
+    /**
+     * 后台定期执行：维护key过滤器、删除不再使用的大值文件
+     */
+    private void maintainImpl(SQLiteStorageEngine sqliteEngine) {
+        try {
+            sqliteEngine.maintainKeyFilter();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "maintain key filter failed", e);
+        }
+        try {
+            sqliteEngine.deleteUnusedValueFiles();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "delete unused value files failed", e);
+        }
+    }
+
+    /**
+     * 在一个事务中删除最多limit个已过期的值，查询和删除在同一个事务中，期间重新写入的key不会被误删
+     * 先在事务外用索引检查，没有过期的值时不开启写事务
+     * 缓存中的值带有过期时间，不会在事务提交前被读到，所以可以在事务中使缓存失效
+     */
+    private int purgeExpiredImpl(int limit) {
+        SQLiteStorageEngine sqliteEngine = requireSQLiteEngine();
+        if (sqliteEngine.expiredKeys(System.currentTimeMillis(), 1).isEmpty()) {
+            return 0;
+        }
+        Runnable none = () -> {
+        };
+        return runInTransactionImpl(none, engine -> {
+            long now = System.currentTimeMillis();
+            List<String> expired = sqliteEngine.expiredKeys(now, limit);
+            if (expired.isEmpty()) {
+                return 0;
+            }
+            String[] keys = expired.toArray(new String[expired.size()]);
+            int lineCount = sqliteEngine.deleteExpired(keys, now);
+            cache.invalidate(keys);
+            changes.onRemove(keys);
+            return lineCount;
+        }, none);
+    }
+
+    /**
+     * 延迟写队列落库，在一个事务中写入
+     */
+    private void writeAllImpl(Map<String, String> keyValues) {
+        changes.begin();
+        boolean success = false;
+        try {
+            putAllImpl(getEngine(), keyValues);
+            success = true;
+        } finally {
+            cache.invalidate(keyValues.keySet().toArray(new String[keyValues.size()]));
+            changes.end(success);
+        }
+    }
+
+    /**
+     * 所有key的变化作为一批分发
+     */
+    private int putAllImpl(StorageEngine engine, Map<String, String> keyValues) {
+        changes.begin();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            int lineCount = engine.putAll(keyValues);
+            success = true;
+            if (changes.hasSubscribers()) {
+                for (Map.Entry<String, String> entry : keyValues.entrySet()) {
+                    if (entry.getValue() != null) {
+                        changes.onSet(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            return lineCount;
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.MULTI_SET, null, start, 0, lengthOf(keyValues), success);
+            changes.end(success);
+        }
+    }
+
+    /**
+     * 按key分页写出，sqlite引擎同时导出过期时间和值的原始类型，其余引擎的值都是字符串
+     */
+    private void exportImpl(StorageEngine engine, Snapshot.Writer writer) throws IOException {
+        SQLiteStorageEngine sqliteEngine = engine instanceof SQLiteStorageEngine ? (SQLiteStorageEngine) engine : null;
+        Map<String, Long> expiries = sqliteEngine == null ? null : new HashMap<>();
+        Map<String, Object> typedValues = sqliteEngine == null ? null : new HashMap<>();
+        String afterKey = null;
+        List<Map.Entry<String, String>> page;
+        do {
+            page = sqliteEngine != null
+                    ? sqliteEngine.scan(afterKey, null, EXPORT_PAGE_SIZE, true, expiries, typedValues)
+                    : engine.scan(afterKey, null, EXPORT_PAGE_SIZE, true);
+            for (Map.Entry<String, String> row : page) {
+                Object typed = typedValues == null ? null : typedValues.get(row.getKey());
+                Long expiresAt = expiries == null ? null : expiries.get(row.getKey());
+                writer.writeRow(row.getKey(), typed != null ? typed : row.getValue(), expiresAt == null ? 0 : expiresAt);
+            }
+            if (!page.isEmpty()) {
+                afterKey = page.get(page.size() - 1).getKey();
+            }
+            if (expiries != null) {
+                expiries.clear();
+                typedValues.clear();
+            }
+        } while (!page.isEmpty());
+    }
+
+    /**
+     * sqlite引擎按原始类型写入，其余引擎把整数、浮点数、二进制值转为字符串
+     * 其余引擎不支持过期时间，带过期时间的值不过期地写入，不会导入一部分后失败
+     */
+    private int importBatchImpl(StorageEngine engine, Map<String, Object> batch, Map<String, Long> expiries) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            int lineCount;
+            if (engine instanceof SQLiteStorageEngine) {
+                lineCount = ((SQLiteStorageEngine) engine).putValues(batch, expiries);
+            } else {
+                if (!expiries.isEmpty()) {
+                    Log.w(TAG, "import: " + engine.getClass().getSimpleName() + " does not support expiry, "
+                            + expiries.size() + " values are imported without expiry");
+                }
+                Map<String, String> texts = new LinkedHashMap<>(batch.size());
+                for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                    texts.put(entry.getKey(), toText(entry.getValue()));
+                }
+                lineCount = engine.putAll(texts);
+            }
+            success = true;
+            return lineCount;
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.MULTI_SET, null, start, 0, sizeOf(batch), success);
+        }
+    }
+
+    /**
+     * 字符串为字符数，二进制值为字节数，整数和浮点数为8
+     */
+    private static long sizeOf(Map<String, Object> values) {
+        long size = 0;
+        for (Object value : values.values()) {
+            if (value instanceof String) {
+                size += ((String) value).length();
+            } else if (value instanceof byte[]) {
+                size += ((byte[]) value).length;
+            } else if (value != null) {
+                size += 8;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 按原始类型写入的值的字符串形式，二进制值为Base64
+     */
+    private static String toText(Object value) {
+        return value instanceof byte[]
+                ? Base64.encodeToString((byte[]) value, Base64.NO_WRAP)
+                : value.toString();
+    }
+
+    /**
+     * 所有值的字符数之和
+     */
+    private long lengthOf(@Nullable Map<String, String> keyValues) {
+        long length = 0;
+        if (keyValues != null) {
+            for (String value : keyValues.values()) {
+                if (value != null) {
+                    length += value.length();
+                }
+            }
+        }
+        return length;
+    }
+
+    private void discardPending(String... keys) {
+        if (writeBehind != null) {
+            writeBehind.discard(keys);
+        }
+    }
+
+    private void discardAllPending() {
+        if (writeBehind != null) {
+            writeBehind.discardAll();
+        }
+    }
+
+    /**
+     * Does the actual merge of the (key, value) pair with the value stored in the database.
+     * NB: This assumes that a database lock is already in effect!
+     *
+     * @return the errorCode of the operation
+     */
+    private boolean mergeImpl(String key, String value)
+            throws JSONException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            String oldValue = getItemImpl(key);
+            success = setItemImpl(key, JsonMerge.merge(oldValue, value));
+            return success;
+        } finally {
+            metrics.record(KVStorageMetrics.Operation.MERGE, key, start, 0, value == null ? 0 : value.length(), success);
+        }
+    }
+
+    public void clearAndCloseDatabase() {
+        discardAllPending();
+        try {
+            getEngine().clearAndClose();
+        } finally {
+            cache.invalidateAll();
+        }
+        changes.onClear();
+    }
+
+    private static final class ScanCursor {
+        @Nullable
+        String lastKey;
+        @Nullable
+        Iterator<Map.Entry<String, String>> page;
+    }
+}
@@ -0,0 +1,64 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * key的变化，由{@link KVStorage#rxObserve}、{@link KVStorage#rxObservePrefix}发射
+ * 同一个事务中同一个key的多次修改只保留最后一次
+ */
+public final class KeyChange {
+
+    public enum Type {
+        /**
+         * 写入了新值
+         */
+        SET,
+        REMOVE,
+        /**
+         * 数据库被清空，key为订阅的key或前缀
+         */
+        CLEAR,
+        /**
+         * 执行了任意sql的事务（{@link KVStorage#rxRunInTransaction}），无法确定改动了哪些key，需要重新读取
+         * key为订阅的key或前缀
+         */
+        UNKNOWN
+    }
+
+    @NonNull
+    private final Type type;
+    @NonNull
+    private final String key;
+    @Nullable
+    private final String value;
+
+    KeyChange(@NonNull Type type, @NonNull String key, @Nullable String value) {
+        this.type = type;
+        this.key = key;
+        this.value = value;
+    }
+
+    @NonNull
+    public Type type() {
+        return type;
+    }
+
+    @NonNull
+    public String key() {
+        return key;
+    }
+
+    /**
+     * 新值，仅{@link Type#SET}时不为null（{@link KVStorage#writeValue}写入的值除外）
+     */
+    @Nullable
+    public String value() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyChange[" + type + "," + key + (value == null ? "" : "=" + value) + "]";
+    }
+}
@@ -0,0 +1,270 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import io.reactivex.functions.Cancellable;
+
+/**
+ * key变化的分发
+ * 写操作在提交后调用{@link #onSet}等方法；在{@link #begin()}、{@link #end}之间（事务中）的变化先记录在当前线程的批次中，
+ * 最外层的事务提交后一次性分发，回滚则丢弃。每个订阅者每批最多收到一次通知
+ * <p>
+ * 订阅者列表是不可变数组，增删时CAS替换，分发时不加锁；没有订阅者时写操作不记录任何东西
+ */
+final class KeyChangeDispatcher {
+
+    private static final Subscriber[] EMPTY = new Subscriber[0];
+
+    private final AtomicReference<Subscriber[]> subscribers = new AtomicReference<>(EMPTY);
+    private final ThreadLocal<Batch> batches = new ThreadLocal<>();
+
+    /**
+     * 单个key的变化，同一批次中只发射最后的状态；下游处理不过来时只保留最新的一个
+     */
+    @NonNull
+    Flowable<KeyChange> observe(@NonNull String key) {
+        return Flowable.create((FlowableEmitter<KeyChange> emitter) ->
+                subscribe(new KeySubscriber(key, emitter.serialize())), BackpressureStrategy.LATEST);
+    }
+
+    /**
+     * 以prefix开头的key的变化，每批发射一个列表
+     */
+    @NonNull
+    Flowable<List<KeyChange>> observePrefix(@NonNull String prefix) {
+        return Flowable.create((FlowableEmitter<List<KeyChange>> emitter) ->
+                subscribe(new PrefixSubscriber(prefix, emitter.serialize())), BackpressureStrategy.BUFFER);
+    }
+
+    boolean hasSubscribers() {
+        return subscribers.get().length > 0;
+    }
+
+    /**
+     * 开始一个批次，可以嵌套，只有最外层的{@link #end}会分发
+     */
+    void begin() {
+        Batch batch = batches.get();
+        if (batch == null) {
+            batch = new Batch();
+            batches.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * @param committed false时丢弃整个批次（包括外层），事务回滚后数据库中没有这些变化
+     */
+    void end(boolean committed) {
+        Batch batch = batches.get();
+        if (batch == null) {
+            return;
+        }
+        if (!committed) {
+            batch.rolledBack = true;
+        }
+        if (--batch.depth > 0) {
+            return;
+        }
+        batches.remove();
+        if (!batch.rolledBack) {
+            dispatch(batch);
+        }
+    }
+
+    void onSet(@NonNull String key, @Nullable String value) {
+        record(key, new KeyChange(KeyChange.Type.SET, key, value));
+    }
+
+    void onRemove(@NonNull String... keys) {
+        for (String key : keys) {
+            record(key, new KeyChange(KeyChange.Type.REMOVE, key, null));
+        }
+    }
+
+    void onClear() {
+        mark(KeyChange.Type.CLEAR);
+    }
+
+    void onUnknown() {
+        mark(KeyChange.Type.UNKNOWN);
+    }
+
+    private void record(String key, KeyChange change) {
+        if (!hasSubscribers()) {
+            return;
+        }
+        Batch batch = batches.get();
+        if (batch != null) {
+            batch.changes.remove(key);
+            batch.changes.put(key, change);
+        } else {
+            Batch single = new Batch();
+            single.changes.put(key, change);
+            dispatch(single);
+        }
+    }
+
+    private void mark(KeyChange.Type type) {
+        if (!hasSubscribers()) {
+            return;
+        }
+        Batch batch = batches.get();
+        if (batch == null) {
+            batch = new Batch();
+            batch.mark = type;
+            dispatch(batch);
+        } else if (batch.mark != KeyChange.Type.UNKNOWN) {
+            // 清空之前的修改已经没有意义
+            batch.changes.clear();
+            batch.mark = type;
+        }
+    }
+
+    private void dispatch(Batch batch) {
+        for (Subscriber subscriber : subscribers.get()) {
+            subscriber.dispatch(batch);
+        }
+    }
+
+    private void subscribe(Subscriber subscriber) {
+        Subscriber[] current;
+        Subscriber[] next;
+        do {
+            current = subscribers.get();
+            next = new Subscriber[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = subscriber;
+        } while (!subscribers.compareAndSet(current, next));
+        subscriber.setCancellable(() -> unsubscribe(subscriber));
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        Subscriber[] current;
+        Subscriber[] next;
+        do {
+            current = subscribers.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == subscriber) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            if (current.length == 1) {
+                next = EMPTY;
+            } else {
+                next = new Subscriber[current.length - 1];
+                System.arraycopy(current, 0, next, 0, index);
+                System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            }
+        } while (!subscribers.compareAndSet(current, next));
+    }
+
+    private abstract static class Subscriber {
+        abstract void dispatch(Batch batch);
+
+        abstract void setCancellable(Cancellable cancellable);
+    }
+
+    /**
+     * 单个key的订阅者，发射{@link KeyChange}
+     */
+    private static final class KeySubscriber extends Subscriber {
+        final String key;
+        final FlowableEmitter<KeyChange> emitter;
+
+        KeySubscriber(String key, FlowableEmitter<KeyChange> emitter) {
+            this.key = key;
+            this.emitter = emitter;
+        }
+
+        @Override
+        void dispatch(Batch batch) {
+            KeyChange change = batch.changes.get(key);
+            if (batch.mark == KeyChange.Type.UNKNOWN || (change == null && batch.mark != null)) {
+                change = new KeyChange(batch.mark, key, null);
+            }
+            if (change != null) {
+                emitter.onNext(change);
+            }
+        }
+
+        @Override
+        void setCancellable(Cancellable cancellable) {
+            emitter.setCancellable(cancellable);
+        }
+    }
+
+    /**
+     * 前缀的订阅者，每批发射一个列表
+     */
+    private static final class PrefixSubscriber extends Subscriber {
+        final String prefix;
+        final FlowableEmitter<List<KeyChange>> emitter;
+
+        PrefixSubscriber(String prefix, FlowableEmitter<List<KeyChange>> emitter) {
+            this.prefix = prefix;
+            this.emitter = emitter;
+        }
+
+        @Override
+        void dispatch(Batch batch) {
+            List<KeyChange> changes = batch.collect(prefix);
+            if (!changes.isEmpty()) {
+                emitter.onNext(changes);
+            }
+        }
+
+        @Override
+        void setCancellable(Cancellable cancellable) {
+            emitter.setCancellable(cancellable);
+        }
+    }
+
+    private static final class Batch {
+        int depth;
+        boolean rolledBack;
+        /**
+         * 批次中发生过清空或未知的修改，{@link #changes}中只有之后的修改
+         */
+        @Nullable
+        KeyChange.Type mark;
+        final Map<String, KeyChange> changes = new LinkedHashMap<>();
+
+        List<KeyChange> collect(String prefix) {
+            if (mark == null && changes.size() == 1) {
+                KeyChange change = changes.values().iterator().next();
+                return change.key().startsWith(prefix)
+                        ? Collections.singletonList(change)
+                        : Collections.<KeyChange>emptyList();
+            }
+            List<KeyChange> result = new ArrayList<>();
+            if (mark != null) {
+                result.add(new KeyChange(mark, prefix, null));
+            }
+            if (mark != KeyChange.Type.UNKNOWN) {
+                for (KeyChange change : changes.values()) {
+                    if (change.key().startsWith(prefix)) {
+                        result.add(change);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 数据库中所有key的布隆过滤器，{@link SQLiteStorageEngine}读取前先检查，不存在的key不查询数据库
+ * 只会误判存在（约1%），不会误判不存在：写入成功后才加入；删除不从过滤器中移除，
+ * 加入的新key超过容量（包括已删除的，覆盖写入已有的key不计）后由{@link SQLiteStorageEngine#maintainKeyFilter()}按当前的key重建
+ * <p>
+ * 过滤器保存在数据库文件旁边，打开数据库时读取。文件只在与数据库一致时存在：
+ * 每次写入前删除文件，没有进行中的写入时才保存，所以进程在任何时候退出都不会留下缺少key的文件
+ */
+final class KeyFilter {
+
+    private static final String TAG = "KVStorage";
+    private static final int MAGIC = 0x4B56424C; // "KVBL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7;
+
+    @Nullable
+    private final File file;
+    /**
+     * 未就绪（还没有读取或构建）或失效时为null，此时所有key都视为可能存在
+     */
+    @Nullable
+    private volatile Bits bits;
+    private volatile boolean disabled;
+
+    // 以下由this保护
+    private int writing = 0;
+    private long modCount = 0;
+    /**
+     * 文件与数据库一致，下一次写入前需要删除
+     */
+    private boolean persisted;
+
+    /**
+     * @param file 保存过滤器的文件，null表示停用
+     */
+    KeyFilter(@Nullable File file) {
+        this.file = file;
+        this.disabled = file == null;
+        // 已有的文件在读取前也要随写入删除
+        this.persisted = file != null && file.exists();
+    }
+
+    /**
+     * @return false表示key一定不存在
+     */
+    boolean mightContain(@NonNull String key) {
+        Bits bits = this.bits;
+        return bits == null || bits.mightContain(key);
+    }
+
+    /**
+     * 写入新key之前调用，删除已保存的文件
+     */
+    synchronized void beforeAdd() {
+        writing++;
+        modCount++;
+        discardFile();
+    }
+
+    /**
+     * 写入之后调用（包括失败），与{@link #beforeAdd()}成对
+     *
+     * @param added 写入成功时加入过滤器
+     */
+    void afterAdd(@Nullable String key, boolean added) {
+        Bits bits = this.bits;
+        if (added && key != null && bits != null) {
+            bits.add(key);
+        }
+        synchronized (this) {
+            writing--;
+        }
+    }
+
+    /**
+     * 数据库清空前调用，之后的写入加入空的过滤器
+     */
+    void reset() {
+        Bits bits = this.bits;
+        if (bits != null) {
+            this.bits = new Bits(bits.capacity);
+        }
+    }
+
+    /**
+     * 直接执行了任意sql，过滤器失效，直到{@link #publish}新的过滤器
+     */
+    synchronized void invalidate() {
+        bits = null;
+        modCount++;
+        discardFile();
+    }
+
+    /**
+     * 数据库可能在任意时刻被直接修改，不再使用过滤器
+     */
+    synchronized void disable() {
+        disabled = true;
+        invalidate();
+    }
+
+    boolean needsRebuild() {
+        Bits bits = this.bits;
+        return !disabled && (bits == null || bits.added.get() > bits.capacity);
+    }
+
+    /**
+     * 容量为keyCount的两倍，之后加入的key不超过keyCount时不需要重建
+     */
+    @NonNull
+    static Bits newBits(long keyCount) {
+        return new Bits((int) Math.min(Integer.MAX_VALUE / BITS_PER_KEY, Math.max(MIN_CAPACITY, keyCount * 2)));
+    }
+
+    /**
+     * 在写事务中调用，保证构建期间没有其他写入
+     */
+    synchronized void publish(@NonNull Bits bits) {
+        if (disabled) {
+            return;
+        }
+        modCount++;
+        discardFile();
+        this.bits = bits;
+    }
+
+    /**
+     * 读取已保存的过滤器，文件不存在或损坏时返回false
+     */
+    boolean load() {
+        long expectedModCount;
+        synchronized (this) {
+            if (disabled || bits != null || !persisted) {
+                return false;
+            }
+            expectedModCount = modCount;
+        }
+        Bits loaded;
+        try {
+            loaded = Bits.readFrom(file);
+        } catch (IOException e) {
+            Log.w(TAG, "load key filter failed", e);
+            loaded = null;
+        }
+        synchronized (this) {
+            // 读取期间有写入时文件已经被删除，读到的内容可能缺少key
+            if (loaded == null || modCount != expectedModCount || bits != null || disabled) {
+                return false;
+            }
+            bits = loaded;
+            return true;
+        }
+    }
+
+    /**
+     * 有未保存的修改且没有进行中的写入时保存
+     */
+    void saveIfDirty() {
+        Bits bits;
+        long expectedModCount;
+        synchronized (this) {
+            bits = this.bits;
+            if (disabled || persisted || writing > 0 || bits == null) {
+                return;
+            }
+            expectedModCount = modCount;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            bits.writeTo(temp);
+        } catch (IOException e) {
+            Log.w(TAG, "save key filter failed", e);
+            temp.delete();
+            return;
+        }
+        synchronized (this) {
+            if (modCount == expectedModCount && this.bits == bits && temp.renameTo(file)) {
+                persisted = true;
+            } else {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * 删除保存的文件（数据库被删除时）
+     */
+    synchronized void deleteFile() {
+        modCount++;
+        discardFile();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private void discardFile() {
+        if (persisted) {
+            persisted = false;
+            file.delete();
+        }
+    }
+
+    /**
+     * 位数组，每个key 10bit，7个hash（由一个64位hash派生），并发加入时用CAS设置
+     */
+    static final class Bits {
+        final int capacity;
+        final AtomicInteger added = new AtomicInteger();
+        private final long bitCount;
+        private final AtomicLongArray words;
+
+        Bits(int capacity) {
+            this.capacity = capacity;
+            int wordCount = (int) (((long) capacity * BITS_PER_KEY + 63) / 64);
+            this.bitCount = (long) wordCount * 64;
+            this.words = new AtomicLongArray(wordCount);
+        }
+
+        /**
+         * 只有设置了新的bit时才计入{@link #added}，覆盖写入已有的key不计入，重建的频率取决于新key的数量而不是写入次数
+         * 所有bit都已被其他key设置的新key（误判存在）不计入，少计的比例不超过误判率
+         *
+         * @return 是否设置了新的bit
+         */
+        boolean add(@NonNull String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            boolean changed = false;
+            for (int i = 0; i < HASH_COUNT; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                while (true) {
+                    long word = words.get(index);
+                    if ((word & mask) != 0) {
+                        break;
+                    }
+                    if (words.compareAndSet(index, word, word | mask)) {
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            if (changed) {
+                added.incrementAndGet();
+            }
+            return changed;
+        }
+
+        boolean mightContain(@NonNull String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < HASH_COUNT; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void writeTo(@NonNull File file) throws IOException {
+            try (FileOutputStream fileOut = new FileOutputStream(file)) {
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOut, crc)));
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(capacity);
+                out.writeInt(added.get());
+                out.writeInt(words.length());
+                for (int i = 0; i < words.length(); i++) {
+                    out.writeLong(words.get(i));
+                }
+                out.flush();
+                new DataOutputStream(fileOut).writeInt((int) crc.getValue());
+                fileOut.getFD().sync();
+            }
+        }
+
+        @Nullable
+        static Bits readFrom(@NonNull File file) throws IOException {
+            CRC32 crc = new CRC32();
+            try (DataInputStream in = new DataInputStream(
+                    new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    return null;
+                }
+                int capacity = in.readInt();
+                int added = in.readInt();
+                int wordCount = in.readInt();
+                if (capacity < MIN_CAPACITY || capacity > Integer.MAX_VALUE / BITS_PER_KEY) {
+                    return null;
+                }
+                Bits bits = new Bits(capacity);
+                if (wordCount != bits.words.length()) {
+                    return null;
+                }
+                for (int i = 0; i < wordCount; i++) {
+                    bits.words.set(i, in.readLong());
+                }
+                bits.added.set(added);
+                int expected = (int) crc.getValue();
+                return in.readInt() == expected ? bits : null;
+            }
+        }
+
+        /**
+         * 64位FNV-1a
+         */
+        private static long hash(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0, length = key.length(); i < length; i++) {
+                hash ^= key.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+}
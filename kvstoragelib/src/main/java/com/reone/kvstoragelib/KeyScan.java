@@ -0,0 +1,58 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 无序的key集合上的分页扫描：选出大于afterKey、以prefix开头的最小的limit个key
+ * 只保留limit个候选，内存占用与key的总数无关
+ */
+final class KeyScan {
+
+    @Nullable
+    private final String afterKey;
+    @Nullable
+    private final String prefix;
+    private final int limit;
+    private final PriorityQueue<String> candidates;
+
+    KeyScan(@Nullable String afterKey, @Nullable String prefix, int limit) {
+        this.afterKey = afterKey;
+        this.prefix = prefix;
+        this.limit = limit;
+        // 大顶堆，堆顶是当前候选中最大的key
+        this.candidates = new PriorityQueue<>(Math.min(limit, 1024) + 1, Collections.reverseOrder());
+    }
+
+    static boolean matches(@NonNull String key, @Nullable String afterKey, @Nullable String prefix) {
+        return (afterKey == null || key.compareTo(afterKey) > 0)
+                && (prefix == null || key.startsWith(prefix));
+    }
+
+    void offer(@NonNull String key) {
+        if (limit <= 0 || !matches(key, afterKey, prefix)) {
+            return;
+        }
+        if (candidates.size() < limit) {
+            candidates.add(key);
+        } else if (key.compareTo(candidates.peek()) < 0) {
+            candidates.poll();
+            candidates.add(key);
+        }
+    }
+
+    /**
+     * @return 升序排列的key
+     */
+    @NonNull
+    List<String> result() {
+        List<String> keys = new ArrayList<>(candidates);
+        Collections.sort(keys);
+        return keys;
+    }
+}
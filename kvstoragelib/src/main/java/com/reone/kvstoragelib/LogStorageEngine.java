@@ -0,0 +1,702 @@
+package com.reone.kvstoragelib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * 追加写日志 + 内存索引的存储引擎（Bitcask）
+ * 所有写入都追加到日志文件末尾，内存中保存 key -> 值在文件中的位置，读取只需一次定位读
+ * 适合值较小、写多的场景；所有key常驻内存，索引按key有序，用于{@link #scan}分页
+ * <p>
+ * 记录格式：crc32(4) | type(1) | keyLength(4) | valueLength(4) | key | value，crc覆盖crc之后的所有字节
+ * 一个事务的所有记录连续写入，最后一条带{@link #FLAG_BATCH_END}，打开时丢弃末尾不完整的事务并截断文件
+ * 无效数据超过有效数据时在后台压缩：把有效记录写入新文件后原子替换
+ */
+public class LogStorageEngine implements StorageEngine {
+
+    public static final Factory FACTORY = LogStorageEngine::new;
+
+    private static final String TAG = "KVStorage";
+    private static final String LOG_FILE_NAME = "KVStorage";
+    private static final String LOG_FILE_EXTENSION = ".log";
+    private static final String COMPACT_FILE_SUFFIX = ".compact";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final byte TYPE_CLEAR = 3;
+    private static final byte TYPE_MASK = 0x0F;
+    private static final byte FLAG_BATCH_END = (byte) 0x80;
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4;
+    private static final long COMPACT_MIN_GARBAGE = 1024 * 1024; // 1 MB in bytes
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final boolean syncOnCommit;
+
+    /**
+     * 写锁，同一时间只有一个写事务
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * 文件锁，读操作持有读锁；打开、关闭、压缩后替换文件时持有写锁
+     */
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+    private final ThreadLocal<Transaction> currentTransaction = new ThreadLocal<>();
+
+    @Nullable
+    private FileChannel channel;
+    private volatile ConcurrentNavigableMap<String, Location> index = new ConcurrentSkipListMap<>();
+    private long writePosition = 0;
+    private long liveBytes = 0;
+    private boolean compacting = false;
+    /**
+     * 每次{@link #clearAndClose()}加1，压缩开始时记录，替换前不一致说明文件已被清空重建，放弃压缩
+     */
+    private long epoch = 0;
+
+    public LogStorageEngine(@NonNull Context context, @NonNull KVStorageOptions options) {
+        this(new File(context.getFilesDir(), options.fileName(LOG_FILE_NAME) + LOG_FILE_EXTENSION), options.synchronous == KVStorageOptions.Synchronous.FULL);
+    }
+
+    public LogStorageEngine(@NonNull File file, boolean syncOnCommit) {
+        this.file = file;
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    @Nullable
+    @Override
+    public String get(@NonNull String key) {
+        Transaction transaction = currentTransaction.get();
+        if (transaction != null && transaction.overlay.containsKey(key)) {
+            return transaction.overlay.get(key);
+        }
+        if (transaction != null && transaction.cleared) {
+            return null;
+        }
+        ensureOpen();
+        fileLock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            return new String(read(channel, location.valuePosition, location.valueLength), UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Reading " + file + " failed", e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    private boolean contains(String key) {
+        Transaction transaction = currentTransaction.get();
+        if (transaction != null && transaction.overlay.containsKey(key)) {
+            return transaction.overlay.get(key) != null;
+        }
+        return (transaction == null || !transaction.cleared) && index.containsKey(key);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, String> getAll(@NonNull String[] keys) {
+        Map<String, String> result = new LinkedHashMap<>(keys.length);
+        for (String key : keys) {
+            String value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean put(@NonNull String key, @Nullable String value) {
+        if (value == null) {
+            return false;
+        }
+        return runInTransaction(engine -> {
+            Transaction transaction = currentTransaction.get();
+            transaction.records.add(new Record(TYPE_PUT, key, value));
+            transaction.overlay.put(key, value);
+            return true;
+        });
+    }
+
+    @Override
+    public int putAll(@NonNull Map<String, String> keyValues) {
+        return runInTransaction(engine -> {
+            int lineCount = 0;
+            for (Map.Entry<String, String> entry : keyValues.entrySet()) {
+                if (put(entry.getKey(), entry.getValue())) {
+                    lineCount++;
+                }
+            }
+            return lineCount;
+        });
+    }
+
+    @Override
+    public int delete(@NonNull String... keys) {
+        return runInTransaction(engine -> {
+            int lineCount = 0;
+            for (String key : keys) {
+                if (contains(key)) {
+                    Transaction transaction = currentTransaction.get();
+                    transaction.records.add(new Record(TYPE_DELETE, key, null));
+                    transaction.overlay.put(key, null);
+                    lineCount++;
+                }
+            }
+            return lineCount;
+        });
+    }
+
+    @NonNull
+    @Override
+    public List<String> keys() {
+        ensureOpen();
+        Transaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            return new ArrayList<>(index.keySet());
+        }
+        Set<String> keys = transaction.cleared ? new HashSet<>() : new HashSet<>(index.keySet());
+        for (Map.Entry<String, String> entry : transaction.overlay.entrySet()) {
+            if (entry.getValue() != null) {
+                keys.add(entry.getKey());
+            } else {
+                keys.remove(entry.getKey());
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+
+    @NonNull
+    @Override
+    public List<Map.Entry<String, String>> scan(@Nullable String afterKey, @Nullable String prefix, int limit, boolean withValues) {
+        ensureOpen();
+        Iterable<String> keys;
+        if (currentTransaction.get() == null) {
+            keys = tailKeys(index, afterKey, prefix);
+        } else {
+            KeyScan scan = new KeyScan(afterKey, prefix, limit);
+            for (String key : keys()) {
+                scan.offer(key);
+            }
+            keys = scan.result();
+        }
+        List<Map.Entry<String, String>> page = new ArrayList<>(Math.min(limit, 1024));
+        for (String key : keys) {
+            if (page.size() >= limit || (prefix != null && !key.startsWith(prefix))) {
+                break;
+            }
+            String value = withValues ? get(key) : null;
+            if (withValues && value == null) {
+                // 迭代期间被删除
+                continue;
+            }
+            page.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+        }
+        return page;
+    }
+
+    /**
+     * 有序索引中从max(afterKey, prefix)开始的key
+     */
+    private static Iterable<String> tailKeys(ConcurrentNavigableMap<String, Location> index, @Nullable String afterKey, @Nullable String prefix) {
+        if (prefix != null && (afterKey == null || prefix.compareTo(afterKey) > 0)) {
+            return index.tailMap(prefix, true).keySet();
+        }
+        if (afterKey != null) {
+            return index.tailMap(afterKey, false).keySet();
+        }
+        return index.keySet();
+    }
+
+    @Override
+    public int clear() {
+        return runInTransaction(engine -> {
+            int lineCount = keys().size();
+            Transaction transaction = currentTransaction.get();
+            transaction.records.add(new Record(TYPE_CLEAR, "", null));
+            transaction.overlay.clear();
+            transaction.cleared = true;
+            return lineCount;
+        });
+    }
+
+    /**
+     * 事务中的写入先保存在内存中，最外层事务结束时一次性追加到文件
+     */
+    @Override
+    public <R> R runInTransaction(@NonNull KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        ensureOpen();
+        writeLock.lock();
+        Transaction transaction = currentTransaction.get();
+        boolean outermost = transaction == null;
+        if (outermost) {
+            transaction = new Transaction();
+            currentTransaction.set(transaction);
+        }
+        try {
+            R result = func.invoke(this);
+            if (outermost && !transaction.failed) {
+                commit(transaction);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            transaction.failed = true;
+            throw e;
+        } finally {
+            if (outermost) {
+                currentTransaction.remove();
+            }
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean inTransaction() {
+        return currentTransaction.get() != null;
+    }
+
+    @Override
+    public void clearAndClose() {
+        writeLock.lock();
+        fileLock.writeLock().lock();
+        try {
+            closeChannel();
+            epoch++;
+            index = new ConcurrentSkipListMap<>();
+            writePosition = 0;
+            liveBytes = 0;
+            if (file.exists() && !file.delete()) {
+                throw new RuntimeException("Clearing and deleting " + file + " failed");
+            }
+        } finally {
+            fileLock.writeLock().unlock();
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 打开文件并从日志恢复索引
+     */
+    private void ensureOpen() {
+        fileLock.readLock().lock();
+        try {
+            if (channel != null) {
+                return;
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        fileLock.writeLock().lock();
+        try {
+            if (channel != null) {
+                return;
+            }
+            File compactFile = new File(file.getPath() + COMPACT_FILE_SUFFIX);
+            if (compactFile.exists() && !compactFile.delete()) {
+                Log.w(TAG, "Deleting unfinished compaction " + compactFile + " failed");
+            }
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IllegalStateException("Creating " + parent + " failed");
+            }
+            FileChannel newChannel = new RandomAccessFile(file, "rw").getChannel();
+            ConcurrentNavigableMap<String, Location> newIndex = new ConcurrentSkipListMap<>();
+            long validLength;
+            try (InputStream in = new FileInputStream(file)) {
+                validLength = replay(in, newChannel.size(), 0, newIndex);
+            }
+            if (validLength < newChannel.size()) {
+                // 末尾是不完整的事务（写入过程中崩溃），直接截断
+                Log.w(TAG, "Truncating " + file + " from " + newChannel.size() + " to " + validLength);
+                newChannel.truncate(validLength);
+            }
+            channel = newChannel;
+            index = newIndex;
+            writePosition = validLength;
+            liveBytes = liveBytesOf(newIndex);
+        } catch (IOException e) {
+            throw new IllegalStateException("Opening " + file + " failed", e);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 在写锁中调用，把事务的所有记录追加到文件并更新索引
+     */
+    private void commit(Transaction transaction) {
+        if (transaction.records.isEmpty()) {
+            return;
+        }
+        int size = 0;
+        for (Record record : transaction.records) {
+            size += record.size();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        long[] valuePositions = new long[transaction.records.size()];
+        for (int i = 0; i < transaction.records.size(); i++) {
+            Record record = transaction.records.get(i);
+            valuePositions[i] = writePosition + buffer.position() + HEADER_SIZE + record.key.length;
+            record.writeTo(buffer, i == transaction.records.size() - 1);
+        }
+        buffer.flip();
+        fileLock.readLock().lock();
+        try {
+            long position = writePosition;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            if (syncOnCommit) {
+                channel.force(false);
+            }
+            for (int i = 0; i < transaction.records.size(); i++) {
+                apply(index, transaction.records.get(i), valuePositions[i]);
+            }
+            writePosition = position;
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing " + file + " failed", e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        maybeScheduleCompaction();
+    }
+
+    private void apply(Map<String, Location> index, Record record, long valuePosition) {
+        switch (record.type) {
+            case TYPE_PUT:
+                Location old = index.put(record.keyString, new Location(valuePosition, record.value.length, record.size()));
+                liveBytes += record.size() - (old == null ? 0 : old.recordLength);
+                break;
+            case TYPE_DELETE:
+                Location removed = index.remove(record.keyString);
+                liveBytes -= removed == null ? 0 : removed.recordLength;
+                break;
+            case TYPE_CLEAR:
+                index.clear();
+                liveBytes = 0;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void maybeScheduleCompaction() {
+        long garbage = writePosition - liveBytes;
+        if (compacting || garbage < COMPACT_MIN_GARBAGE || garbage < liveBytes) {
+            return;
+        }
+        compacting = true;
+        Schedulers.io().scheduleDirect(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Compacting " + file + " failed", e);
+            } finally {
+                writeLock.lock();
+                compacting = false;
+                writeLock.unlock();
+            }
+        });
+    }
+
+    /**
+     * 把有效记录写入新文件后替换原文件
+     * 复制期间不阻塞读写，替换前在写锁中补上复制期间新追加的记录
+     * 期间文件被{@link #clearAndClose()}清空（之后可能已重新打开）时放弃，不替换
+     */
+    private void compact() throws IOException {
+        File compactFile = new File(file.getPath() + COMPACT_FILE_SUFFIX);
+        Map<String, Location> snapshot;
+        long snapshotEnd;
+        long snapshotEpoch;
+        writeLock.lock();
+        try {
+            if (channel == null) {
+                return;
+            }
+            snapshot = new HashMap<>(index);
+            snapshotEnd = writePosition;
+            snapshotEpoch = epoch;
+        } finally {
+            writeLock.unlock();
+        }
+
+        RandomAccessFile compactRaf = new RandomAccessFile(compactFile, "rw");
+        FileChannel compactChannel = compactRaf.getChannel();
+        boolean replaced = false;
+        try {
+            compactChannel.truncate(0);
+            ConcurrentNavigableMap<String, Location> newIndex = new ConcurrentSkipListMap<>();
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long position = 0;
+            fileLock.readLock().lock();
+            try {
+                if (channel == null || epoch != snapshotEpoch) {
+                    return;
+                }
+                for (Map.Entry<String, Location> entry : snapshot.entrySet()) {
+                    Location location = entry.getValue();
+                    Record record = new Record(entry.getKey(), read(channel, location.valuePosition, location.valueLength));
+                    if (buffer.remaining() < record.size()) {
+                        position = flushBuffer(compactChannel, buffer, position);
+                        if (buffer.capacity() < record.size()) {
+                            buffer = ByteBuffer.allocate(record.size());
+                        }
+                    }
+                    long valuePosition = position + buffer.position() + HEADER_SIZE + record.key.length;
+                    record.writeTo(buffer, true);
+                    newIndex.put(entry.getKey(), new Location(valuePosition, location.valueLength, record.size()));
+                }
+                position = flushBuffer(compactChannel, buffer, position);
+            } finally {
+                fileLock.readLock().unlock();
+            }
+
+            writeLock.lock();
+            fileLock.writeLock().lock();
+            try {
+                if (channel == null || epoch != snapshotEpoch) {
+                    return;
+                }
+                // 复制期间追加的记录原样复制到新文件末尾，并重放到新索引
+                long tailLength = writePosition - snapshotEnd;
+                if (tailLength > 0) {
+                    byte[] tail = read(channel, snapshotEnd, (int) tailLength);
+                    long tailStart = position;
+                    position = flushBuffer(compactChannel, ByteBuffer.wrap(tail), position);
+                    replay(new ByteArrayInputStream(tail), tail.length, tailStart, newIndex);
+                }
+                compactChannel.force(true);
+                if (!compactFile.renameTo(file)) {
+                    throw new IOException("Renaming " + compactFile + " to " + file + " failed");
+                }
+                closeChannel();
+                channel = compactChannel;
+                index = newIndex;
+                writePosition = position;
+                liveBytes = liveBytesOf(newIndex);
+                replaced = true;
+            } finally {
+                fileLock.writeLock().unlock();
+                writeLock.unlock();
+            }
+        } finally {
+            if (!replaced) {
+                compactRaf.close();
+                if (compactFile.exists() && !compactFile.delete()) {
+                    Log.w(TAG, "Deleting " + compactFile + " failed");
+                }
+            }
+        }
+    }
+
+    /**
+     * 从日志重放到索引，只应用完整的事务
+     * 长度超出剩余字节数的记录（长度字段损坏或写入不完整）视为有效日志的结尾，不按损坏的长度分配内存
+     *
+     * @param length       输入流的字节数
+     * @param basePosition 输入流第一个字节在文件中的位置
+     * @return 最后一个完整事务结束的位置（相对于输入流）
+     */
+    private long replay(InputStream input, long length, long basePosition, Map<String, Location> index) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, COPY_BUFFER_SIZE));
+        List<Record> batch = new ArrayList<>();
+        List<Long> batchPositions = new ArrayList<>();
+        CRC32 crc32 = new CRC32();
+        long position = 0;
+        long validLength = 0;
+        while (true) {
+            byte type;
+            byte[] key;
+            byte[] value;
+            int crc;
+            try {
+                crc = in.readInt();
+                type = in.readByte();
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                if (keyLength < 0 || valueLength < 0
+                        || position + HEADER_SIZE + (long) keyLength + valueLength > length) {
+                    break;
+                }
+                key = new byte[keyLength];
+                value = new byte[valueLength];
+                in.readFully(key);
+                in.readFully(value);
+            } catch (EOFException e) {
+                break;
+            }
+            Record record = new Record((byte) (type & TYPE_MASK), key, value);
+            crc32.reset();
+            crc32.update(type);
+            crc32.update(intBytes(key.length));
+            crc32.update(intBytes(value.length));
+            crc32.update(key);
+            crc32.update(value);
+            if ((int) crc32.getValue() != crc) {
+                break;
+            }
+            batch.add(record);
+            batchPositions.add(basePosition + position + HEADER_SIZE + key.length);
+            position += record.size();
+            if ((type & FLAG_BATCH_END) != 0) {
+                for (int i = 0; i < batch.size(); i++) {
+                    apply(index, batch.get(i), batchPositions.get(i));
+                }
+                batch.clear();
+                batchPositions.clear();
+                validLength = position;
+            }
+        }
+        return validLength;
+    }
+
+    private static long liveBytesOf(Map<String, Location> index) {
+        long bytes = 0;
+        for (Location location : index.values()) {
+            bytes += location.recordLength;
+        }
+        return bytes;
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.array();
+    }
+
+    private static long flushBuffer(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+        return position;
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Closing " + file + " failed", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * 值在文件中的位置
+     */
+    private static final class Location {
+        final long valuePosition;
+        final int valueLength;
+        final int recordLength;
+
+        Location(long valuePosition, int valueLength, int recordLength) {
+            this.valuePosition = valuePosition;
+            this.valueLength = valueLength;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private static final class Record {
+        final byte type;
+        final byte[] key;
+        final byte[] value;
+        final String keyString;
+
+        Record(byte type, String key, @Nullable String value) {
+            this(type, key.getBytes(UTF_8), value == null ? new byte[0] : value.getBytes(UTF_8), key);
+        }
+
+        Record(String key, byte[] value) {
+            this(TYPE_PUT, key.getBytes(UTF_8), value, key);
+        }
+
+        Record(byte type, byte[] key, byte[] value) {
+            this(type, key, value, new String(key, UTF_8));
+        }
+
+        private Record(byte type, byte[] key, byte[] value, String keyString) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.keyString = keyString;
+        }
+
+        int size() {
+            return HEADER_SIZE + key.length + value.length;
+        }
+
+        void writeTo(ByteBuffer buffer, boolean batchEnd) {
+            byte flaggedType = batchEnd ? (byte) (type | FLAG_BATCH_END) : type;
+            CRC32 crc32 = new CRC32();
+            crc32.update(flaggedType);
+            crc32.update(intBytes(key.length));
+            crc32.update(intBytes(value.length));
+            crc32.update(key);
+            crc32.update(value);
+            buffer.putInt((int) crc32.getValue());
+            buffer.put(flaggedType);
+            buffer.putInt(key.length);
+            buffer.putInt(value.length);
+            buffer.put(key);
+            buffer.put(value);
+        }
+    }
+
+    private static final class Transaction {
+        final List<Record> records = new ArrayList<>();
+        /**
+         * 事务中写入的值，删除的key对应null
+         */
+        final Map<String, String> overlay = new HashMap<>();
+        boolean cleared = false;
+        boolean failed = false;
+    }
+}
@@ -0,0 +1,874 @@
+package com.reone.kvstoragelib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的存储引擎
+ * 数据以追加写日志的形式保存在{@link MappedByteBuffer}中，索引是堆外的开放寻址哈希表，
+ * 读取时直接在映射内存中比较key、解码value，不经过系统调用，除返回的String外不分配对象
+ * <p>
+ * 文件格式：magic(4) | version(4) | 记录...，记录格式与{@link LogStorageEngine}相同：
+ * crc32(4) | type(1) | keyLength(4) | valueLength(4) | key | value
+ * 空间不足时扩大文件并重新映射；打开时从头扫描重建索引，遇到不完整的事务时丢弃并清零之后的内容
+ * 单个文件最大2GB
+ */
+public class MappedStorageEngine implements StorageEngine {
+
+    public static final Factory FACTORY = MappedStorageEngine::new;
+
+    private static final String TAG = "KVStorage";
+    private static final String MAPPED_FILE_NAME = "KVStorage";
+    private static final String MAPPED_FILE_EXTENSION = ".mmap";
+    private static final String COMPACT_FILE_SUFFIX = ".compact";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x4B564D4D; // "KVMM"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 1024 * 1024; // 1 MB in bytes
+    private static final long MAX_CAPACITY = Integer.MAX_VALUE;
+    private static final int COMPACT_MIN_GARBAGE = 1024 * 1024; // 1 MB in bytes
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final byte TYPE_CLEAR = 3;
+    private static final byte TYPE_MASK = 0x0F;
+    private static final byte FLAG_BATCH_END = (byte) 0x80;
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4;
+    private static final int KEY_LENGTH_OFFSET = 5;
+    private static final int VALUE_LENGTH_OFFSET = 9;
+
+    private final File file;
+    private final boolean syncOnCommit;
+
+    /**
+     * 写锁，同一时间只有一个写事务
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * 读操作持有读锁；更新索引、重新映射、压缩时持有写锁
+     */
+    private final ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();
+    private final ThreadLocal<Transaction> currentTransaction = new ThreadLocal<>();
+    private final ThreadLocal<ReadBuffer> readBuffers = new ThreadLocal<>();
+
+    @Nullable
+    private FileChannel channel;
+    @Nullable
+    private MappedByteBuffer map;
+    private OffHeapIndex index = new OffHeapIndex(16);
+    private int writePosition = FILE_HEADER_SIZE;
+    private long liveBytes = 0;
+    private volatile boolean opened = false;
+
+    public MappedStorageEngine(@NonNull Context context, @NonNull KVStorageOptions options) {
+        this(new File(context.getFilesDir(), options.fileName(MAPPED_FILE_NAME) + MAPPED_FILE_EXTENSION), options.synchronous == KVStorageOptions.Synchronous.FULL);
+    }
+
+    public MappedStorageEngine(@NonNull File file, boolean syncOnCommit) {
+        this.file = file;
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    @Nullable
+    @Override
+    public String get(@NonNull String key) {
+        Transaction transaction = currentTransaction.get();
+        if (transaction != null && transaction.overlay.containsKey(key)) {
+            return transaction.overlay.get(key);
+        }
+        if (transaction != null && transaction.cleared) {
+            return null;
+        }
+        if (!opened) {
+            ensureOpen();
+        }
+        mapLock.readLock().lock();
+        try {
+            int position = index.find(map, key, hash(key));
+            if (position < 0) {
+                return null;
+            }
+            int keyLength = map.getInt(position + KEY_LENGTH_OFFSET);
+            int valueLength = map.getInt(position + VALUE_LENGTH_OFFSET);
+            return readString(position + HEADER_SIZE + keyLength, valueLength);
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    private boolean contains(String key) {
+        Transaction transaction = currentTransaction.get();
+        if (transaction != null && transaction.overlay.containsKey(key)) {
+            return transaction.overlay.get(key) != null;
+        }
+        if (transaction != null && transaction.cleared) {
+            return false;
+        }
+        mapLock.readLock().lock();
+        try {
+            return index.find(map, key, hash(key)) >= 0;
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Map<String, String> getAll(@NonNull String[] keys) {
+        Map<String, String> result = new LinkedHashMap<>(keys.length);
+        for (String key : keys) {
+            String value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean put(@NonNull String key, @Nullable String value) {
+        if (value == null) {
+            return false;
+        }
+        return runInTransaction(engine -> {
+            Transaction transaction = currentTransaction.get();
+            transaction.records.add(new Record(TYPE_PUT, key, value));
+            transaction.overlay.put(key, value);
+            return true;
+        });
+    }
+
+    @Override
+    public int putAll(@NonNull Map<String, String> keyValues) {
+        return runInTransaction(engine -> {
+            int lineCount = 0;
+            for (Map.Entry<String, String> entry : keyValues.entrySet()) {
+                if (put(entry.getKey(), entry.getValue())) {
+                    lineCount++;
+                }
+            }
+            return lineCount;
+        });
+    }
+
+    @Override
+    public int delete(@NonNull String... keys) {
+        return runInTransaction(engine -> {
+            int lineCount = 0;
+            for (String key : keys) {
+                if (contains(key)) {
+                    Transaction transaction = currentTransaction.get();
+                    transaction.records.add(new Record(TYPE_DELETE, key, null));
+                    transaction.overlay.put(key, null);
+                    lineCount++;
+                }
+            }
+            return lineCount;
+        });
+    }
+
+    @NonNull
+    @Override
+    public List<String> keys() {
+        ensureOpen();
+        List<String> keys = new ArrayList<>();
+        mapLock.readLock().lock();
+        try {
+            for (int slot = 0; slot < index.capacity; slot++) {
+                int position = index.positionAt(slot);
+                if (position > 0) {
+                    keys.add(readString(position + HEADER_SIZE, map.getInt(position + KEY_LENGTH_OFFSET)));
+                }
+            }
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        Transaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            return keys;
+        }
+        Set<String> keySet = transaction.cleared ? new HashSet<>() : new HashSet<>(keys);
+        for (Map.Entry<String, String> entry : transaction.overlay.entrySet()) {
+            if (entry.getValue() != null) {
+                keySet.add(entry.getKey());
+            } else {
+                keySet.remove(entry.getKey());
+            }
+        }
+        return new ArrayList<>(keySet);
+    }
+
+    /**
+     * 哈希索引无序，每一页都要遍历所有槽位，只保留最小的limit个key
+     */
+    @NonNull
+    @Override
+    public List<Map.Entry<String, String>> scan(@Nullable String afterKey, @Nullable String prefix, int limit, boolean withValues) {
+        ensureOpen();
+        KeyScan scan = new KeyScan(afterKey, prefix, limit);
+        if (currentTransaction.get() == null) {
+            mapLock.readLock().lock();
+            try {
+                for (int slot = 0; slot < index.capacity; slot++) {
+                    int position = index.positionAt(slot);
+                    if (position > 0) {
+                        scan.offer(readString(position + HEADER_SIZE, map.getInt(position + KEY_LENGTH_OFFSET)));
+                    }
+                }
+            } finally {
+                mapLock.readLock().unlock();
+            }
+        } else {
+            for (String key : keys()) {
+                scan.offer(key);
+            }
+        }
+        List<Map.Entry<String, String>> page = new ArrayList<>(Math.min(limit, 1024));
+        for (String key : scan.result()) {
+            String value = withValues ? get(key) : null;
+            if (withValues && value == null) {
+                // 扫描之后被删除
+                continue;
+            }
+            page.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+        }
+        return page;
+    }
+
+    @Override
+    public int clear() {
+        return runInTransaction(engine -> {
+            int lineCount = keys().size();
+            Transaction transaction = currentTransaction.get();
+            transaction.records.add(new Record(TYPE_CLEAR, "", null));
+            transaction.overlay.clear();
+            transaction.cleared = true;
+            return lineCount;
+        });
+    }
+
+    /**
+     * 事务中的写入先保存在内存中，最外层事务结束时一次性写入映射
+     */
+    @Override
+    public <R> R runInTransaction(@NonNull KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        ensureOpen();
+        writeLock.lock();
+        Transaction transaction = currentTransaction.get();
+        boolean outermost = transaction == null;
+        if (outermost) {
+            transaction = new Transaction();
+            currentTransaction.set(transaction);
+        }
+        try {
+            R result = func.invoke(this);
+            if (outermost && !transaction.failed) {
+                commit(transaction);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            transaction.failed = true;
+            throw e;
+        } finally {
+            if (outermost) {
+                currentTransaction.remove();
+            }
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean inTransaction() {
+        return currentTransaction.get() != null;
+    }
+
+    @Override
+    public void clearAndClose() {
+        writeLock.lock();
+        mapLock.writeLock().lock();
+        try {
+            close();
+            opened = false;
+            index = new OffHeapIndex(16);
+            writePosition = FILE_HEADER_SIZE;
+            liveBytes = 0;
+            if (file.exists() && !file.delete()) {
+                throw new RuntimeException("Clearing and deleting " + file + " failed");
+            }
+        } finally {
+            mapLock.writeLock().unlock();
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 映射文件并从头扫描重建索引
+     */
+    private void ensureOpen() {
+        mapLock.readLock().lock();
+        try {
+            if (map != null) {
+                return;
+            }
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        mapLock.writeLock().lock();
+        try {
+            if (map != null) {
+                return;
+            }
+            File compactFile = new File(file.getPath() + COMPACT_FILE_SUFFIX);
+            if (compactFile.exists() && !compactFile.delete()) {
+                Log.w(TAG, "Deleting unfinished compaction " + compactFile + " failed");
+            }
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IllegalStateException("Creating " + parent + " failed");
+            }
+            FileChannel newChannel = new RandomAccessFile(file, "rw").getChannel();
+            long size = newChannel.size();
+            MappedByteBuffer newMap = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_CAPACITY));
+            if (size < FILE_HEADER_SIZE || newMap.getInt(0) != MAGIC) {
+                if (size >= FILE_HEADER_SIZE) {
+                    Log.w(TAG, "Unknown file format " + file + ", recreating");
+                }
+                zero(newMap, 0, newMap.capacity());
+                newMap.putInt(0, MAGIC);
+                newMap.putInt(4, VERSION);
+            }
+            channel = newChannel;
+            map = newMap;
+            recover();
+            opened = true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Opening " + file + " failed", e);
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 在写锁中调用，扫描所有记录重建索引，只应用完整的事务
+     */
+    private void recover() {
+        index = new OffHeapIndex(16);
+        liveBytes = 0;
+        CRC32 crc32 = new CRC32();
+        byte[] scratch = new byte[256];
+        List<Integer> batch = new ArrayList<>();
+        ByteBuffer view = map.duplicate();
+        int position = FILE_HEADER_SIZE;
+        int validEnd = FILE_HEADER_SIZE;
+        int capacity = map.capacity();
+        while (position + HEADER_SIZE <= capacity) {
+            byte type = map.get(position + 4);
+            int maskedType = type & TYPE_MASK;
+            int keyLength = map.getInt(position + KEY_LENGTH_OFFSET);
+            int valueLength = map.getInt(position + VALUE_LENGTH_OFFSET);
+            if (maskedType < TYPE_PUT || maskedType > TYPE_CLEAR || keyLength < 0 || valueLength < 0
+                    || (long) position + HEADER_SIZE + keyLength + valueLength > capacity) {
+                break;
+            }
+            int checkedLength = 1 + 4 + 4 + keyLength + valueLength;
+            if (scratch.length < checkedLength) {
+                scratch = new byte[checkedLength];
+            }
+            view.position(position + 4);
+            view.get(scratch, 0, checkedLength);
+            crc32.reset();
+            crc32.update(scratch, 0, checkedLength);
+            if ((int) crc32.getValue() != map.getInt(position)) {
+                break;
+            }
+            batch.add(position);
+            position += HEADER_SIZE + keyLength + valueLength;
+            if ((type & FLAG_BATCH_END) != 0) {
+                for (int recordPosition : batch) {
+                    apply(recordPosition);
+                }
+                batch.clear();
+                validEnd = position;
+            }
+        }
+        // 崩溃时映射中的页可能乱序落盘，有效数据之后可能残留不完整的事务，
+        // 全部清零，避免之后的追加写与残留数据拼成有效记录
+        if (zero(map, validEnd, capacity)) {
+            Log.w(TAG, "Discarded incomplete data in " + file + " after " + validEnd);
+        }
+        writePosition = validEnd;
+    }
+
+    /**
+     * 把文件中已写入的一条记录应用到索引
+     */
+    private void apply(int position) {
+        int type = map.get(position + 4) & TYPE_MASK;
+        int keyLength = map.getInt(position + KEY_LENGTH_OFFSET);
+        int valueLength = map.getInt(position + VALUE_LENGTH_OFFSET);
+        switch (type) {
+            case TYPE_PUT: {
+                String key = readString(position + HEADER_SIZE, keyLength);
+                int old = index.put(map, key, hash(key), position);
+                liveBytes += HEADER_SIZE + keyLength + valueLength - recordLength(old);
+                if (index.needsResize()) {
+                    index = index.resize();
+                }
+                break;
+            }
+            case TYPE_DELETE: {
+                String key = readString(position + HEADER_SIZE, keyLength);
+                liveBytes -= recordLength(index.remove(map, key, hash(key)));
+                break;
+            }
+            case TYPE_CLEAR:
+                index = new OffHeapIndex(16);
+                liveBytes = 0;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private int recordLength(int position) {
+        if (position <= 0) {
+            return 0;
+        }
+        return HEADER_SIZE + map.getInt(position + KEY_LENGTH_OFFSET) + map.getInt(position + VALUE_LENGTH_OFFSET);
+    }
+
+    /**
+     * 在写锁中调用，把事务的所有记录写入映射并更新索引
+     */
+    private void commit(Transaction transaction) {
+        if (transaction.records.isEmpty()) {
+            return;
+        }
+        long size = 0;
+        for (Record record : transaction.records) {
+            size += record.size();
+        }
+        mapLock.writeLock().lock();
+        try {
+            ensureCapacity(writePosition + size);
+            ByteBuffer view = map.duplicate();
+            view.position(writePosition);
+            int[] positions = new int[transaction.records.size()];
+            for (int i = 0; i < transaction.records.size(); i++) {
+                positions[i] = view.position();
+                transaction.records.get(i).writeTo(view, i == transaction.records.size() - 1);
+            }
+            if (syncOnCommit) {
+                map.force();
+            }
+            writePosition = view.position();
+            for (int position : positions) {
+                apply(position);
+            }
+            maybeCompact();
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 空间不足时扩大文件并重新映射，旧的映射由GC回收
+     */
+    private void ensureCapacity(long required) {
+        if (required <= map.capacity()) {
+            return;
+        }
+        if (required > MAX_CAPACITY) {
+            throw new IllegalStateException("Mapped file " + file + " exceeds " + MAX_CAPACITY + " bytes");
+        }
+        long newCapacity = map.capacity();
+        while (newCapacity < required) {
+            newCapacity = Math.min(newCapacity * 2, MAX_CAPACITY);
+        }
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+        } catch (IOException e) {
+            throw new IllegalStateException("Growing " + file + " to " + newCapacity + " failed", e);
+        }
+    }
+
+    /**
+     * 在写锁中调用，无效数据超过有效数据时把有效记录复制到新文件后替换
+     * 复制在内存映射之间进行，期间读写都会等待
+     */
+    private void maybeCompact() {
+        long garbage = writePosition - FILE_HEADER_SIZE - liveBytes;
+        if (garbage < COMPACT_MIN_GARBAGE || garbage < liveBytes) {
+            return;
+        }
+        File compactFile = new File(file.getPath() + COMPACT_FILE_SUFFIX);
+        FileChannel compactChannel = null;
+        try {
+            compactChannel = new RandomAccessFile(compactFile, "rw").getChannel();
+            compactChannel.truncate(0);
+            long capacity = Math.max(INITIAL_CAPACITY, Long.highestOneBit(FILE_HEADER_SIZE + liveBytes) * 2);
+            MappedByteBuffer compactMap = compactChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            compactMap.putInt(0, MAGIC);
+            compactMap.putInt(4, VERSION);
+            ByteBuffer target = compactMap.duplicate();
+            target.position(FILE_HEADER_SIZE);
+            ByteBuffer source = map.duplicate();
+            CRC32 crc32 = new CRC32();
+            byte[] scratch = new byte[256];
+            for (int slot = 0; slot < index.capacity; slot++) {
+                int position = index.positionAt(slot);
+                if (position <= 0) {
+                    continue;
+                }
+                int checkedLength = 1 + 4 + 4 + map.getInt(position + KEY_LENGTH_OFFSET) + map.getInt(position + VALUE_LENGTH_OFFSET);
+                if (scratch.length < checkedLength) {
+                    scratch = new byte[checkedLength];
+                }
+                source.position(position + 4);
+                source.get(scratch, 0, checkedLength);
+                // 每条记录单独成为一个完整的事务
+                scratch[0] = (byte) ((scratch[0] & TYPE_MASK) | FLAG_BATCH_END);
+                crc32.reset();
+                crc32.update(scratch, 0, checkedLength);
+                target.putInt((int) crc32.getValue());
+                target.put(scratch, 0, checkedLength);
+            }
+            compactMap.force();
+            if (!compactFile.renameTo(file)) {
+                throw new IOException("Renaming " + compactFile + " to " + file + " failed");
+            }
+            close();
+            channel = compactChannel;
+            map = compactMap;
+            compactChannel = null;
+            recover();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Compacting " + file + " failed", e);
+        } finally {
+            if (compactChannel != null) {
+                try {
+                    compactChannel.close();
+                } catch (IOException ignore) {
+                }
+                if (compactFile.exists() && !compactFile.delete()) {
+                    Log.w(TAG, "Deleting " + compactFile + " failed");
+                }
+            }
+        }
+    }
+
+    /**
+     * 从映射中解码UTF-8字符串，使用线程独享的缓冲区，除返回的String外不分配对象
+     */
+    private String readString(int position, int length) {
+        ReadBuffer buffer = readBuffers.get();
+        if (buffer == null) {
+            buffer = new ReadBuffer();
+            readBuffers.set(buffer);
+        }
+        if (buffer.source != map) {
+            buffer.source = map;
+            buffer.view = map.duplicate();
+        }
+        if (buffer.scratch.length < length) {
+            buffer.scratch = new byte[Math.max(length, buffer.scratch.length * 2)];
+        }
+        buffer.view.position(position);
+        buffer.view.get(buffer.scratch, 0, length);
+        return new String(buffer.scratch, 0, length, UTF_8);
+    }
+
+    private void close() {
+        map = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Closing " + file + " failed", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * 清零[from, to)，只写入非零的部分
+     *
+     * @return 是否有非零的数据
+     */
+    private static boolean zero(ByteBuffer buffer, int from, int to) {
+        boolean dirty = false;
+        int i = from;
+        for (; i < to && (i & 7) != 0; i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+        for (; i + 8 <= to; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                buffer.putLong(i, 0);
+                dirty = true;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+        return dirty;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 比较映射中的UTF-8字节与key，逐个字符编码比较，不分配对象
+     * 与{@link String#getBytes}一致，不成对的代理字符按'?'处理
+     */
+    private static boolean keyEquals(ByteBuffer map, int offset, int length, String key) {
+        int p = offset;
+        int end = offset + length;
+        int keyLength = key.length();
+        for (int i = 0; i < keyLength; i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                if (p >= end || map.get(p++) != (byte) c) {
+                    return false;
+                }
+            } else if (c < 0x800) {
+                if (p + 2 > end
+                        || map.get(p++) != (byte) (0xC0 | (c >> 6))
+                        || map.get(p++) != (byte) (0x80 | (c & 0x3F))) {
+                    return false;
+                }
+            } else if (Character.isHighSurrogate(c) && i + 1 < keyLength && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, key.charAt(++i));
+                if (p + 4 > end
+                        || map.get(p++) != (byte) (0xF0 | (codePoint >> 18))
+                        || map.get(p++) != (byte) (0x80 | ((codePoint >> 12) & 0x3F))
+                        || map.get(p++) != (byte) (0x80 | ((codePoint >> 6) & 0x3F))
+                        || map.get(p++) != (byte) (0x80 | (codePoint & 0x3F))) {
+                    return false;
+                }
+            } else if (Character.isSurrogate(c)) {
+                if (p >= end || map.get(p++) != (byte) '?') {
+                    return false;
+                }
+            } else {
+                if (p + 3 > end
+                        || map.get(p++) != (byte) (0xE0 | (c >> 12))
+                        || map.get(p++) != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || map.get(p++) != (byte) (0x80 | (c & 0x3F))) {
+                    return false;
+                }
+            }
+        }
+        return p == end;
+    }
+
+    /**
+     * 堆外开放寻址哈希表，每个槽位：记录位置(4) | hash(4)
+     * 位置0表示空槽，-1表示已删除
+     */
+    private static final class OffHeapIndex {
+        private static final int SLOT_SIZE = 8;
+        private static final int EMPTY = 0;
+        private static final int DELETED = -1;
+
+        final ByteBuffer table;
+        final int capacity;
+        private final int mask;
+        private int size = 0;
+        private int used = 0;
+
+        OffHeapIndex(int capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+
+        int positionAt(int slot) {
+            return table.getInt(slot * SLOT_SIZE);
+        }
+
+        /**
+         * @return 记录位置，不存在时返回-1
+         */
+        int find(ByteBuffer map, String key, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                int position = table.getInt(slot * SLOT_SIZE);
+                if (position == EMPTY) {
+                    return -1;
+                }
+                if (position > 0 && table.getInt(slot * SLOT_SIZE + 4) == hash
+                        && keyEquals(map, position + HEADER_SIZE, map.getInt(position + KEY_LENGTH_OFFSET), key)) {
+                    return position;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * @return 原来的记录位置，不存在时返回-1
+         */
+        int put(ByteBuffer map, String key, int hash, int newPosition) {
+            int slot = hash & mask;
+            int firstDeleted = -1;
+            while (true) {
+                int position = table.getInt(slot * SLOT_SIZE);
+                if (position == EMPTY) {
+                    break;
+                }
+                if (position == DELETED) {
+                    if (firstDeleted < 0) {
+                        firstDeleted = slot;
+                    }
+                } else if (table.getInt(slot * SLOT_SIZE + 4) == hash
+                        && keyEquals(map, position + HEADER_SIZE, map.getInt(position + KEY_LENGTH_OFFSET), key)) {
+                    table.putInt(slot * SLOT_SIZE, newPosition);
+                    return position;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (firstDeleted >= 0) {
+                slot = firstDeleted;
+            } else {
+                used++;
+            }
+            table.putInt(slot * SLOT_SIZE + 4, hash);
+            table.putInt(slot * SLOT_SIZE, newPosition);
+            size++;
+            return -1;
+        }
+
+        /**
+         * @return 删除的记录位置，不存在时返回-1
+         */
+        int remove(ByteBuffer map, String key, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                int position = table.getInt(slot * SLOT_SIZE);
+                if (position == EMPTY) {
+                    return -1;
+                }
+                if (position > 0 && table.getInt(slot * SLOT_SIZE + 4) == hash
+                        && keyEquals(map, position + HEADER_SIZE, map.getInt(position + KEY_LENGTH_OFFSET), key)) {
+                    table.putInt(slot * SLOT_SIZE, DELETED);
+                    size--;
+                    return position;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        boolean needsResize() {
+            return used > capacity * 3 / 4;
+        }
+
+        /**
+         * 重新分配，已删除的槽位会被清理
+         */
+        OffHeapIndex resize() {
+            int newCapacity = size > capacity / 2 ? capacity * 2 : capacity;
+            OffHeapIndex resized = new OffHeapIndex(newCapacity);
+            for (int slot = 0; slot < capacity; slot++) {
+                int position = table.getInt(slot * SLOT_SIZE);
+                if (position > 0) {
+                    resized.insertNew(table.getInt(slot * SLOT_SIZE + 4), position);
+                }
+            }
+            return resized;
+        }
+
+        private void insertNew(int hash, int position) {
+            int slot = hash & mask;
+            while (table.getInt(slot * SLOT_SIZE) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table.putInt(slot * SLOT_SIZE + 4, hash);
+            table.putInt(slot * SLOT_SIZE, position);
+            size++;
+            used++;
+        }
+    }
+
+    private static final class ReadBuffer {
+        @Nullable
+        MappedByteBuffer source;
+        ByteBuffer view;
+        byte[] scratch = new byte[256];
+    }
+
+    private static final class Record {
+        final byte type;
+        final byte[] key;
+        final byte[] value;
+
+        Record(byte type, String key, @Nullable String value) {
+            this.type = type;
+            this.key = key.getBytes(UTF_8);
+            this.value = value == null ? new byte[0] : value.getBytes(UTF_8);
+        }
+
+        int size() {
+            return HEADER_SIZE + key.length + value.length;
+        }
+
+        void writeTo(ByteBuffer buffer, boolean batchEnd) {
+            byte flaggedType = batchEnd ? (byte) (type | FLAG_BATCH_END) : type;
+            CRC32 crc32 = new CRC32();
+            crc32.update(flaggedType);
+            crc32.update(intBytes(key.length));
+            crc32.update(intBytes(value.length));
+            crc32.update(key);
+            crc32.update(value);
+            buffer.putInt((int) crc32.getValue());
+            buffer.put(flaggedType);
+            buffer.putInt(key.length);
+            buffer.putInt(value.length);
+            buffer.put(key);
+            buffer.put(value);
+        }
+
+        private static byte[] intBytes(int value) {
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+    }
+
+    private static final class Transaction {
+        final List<Record> records = new ArrayList<>();
+        /**
+         * 事务中写入的值，删除的key对应null
+         */
+        final Map<String, String> overlay = new HashMap<>();
+        boolean cleared = false;
+        boolean failed = false;
+    }
+}
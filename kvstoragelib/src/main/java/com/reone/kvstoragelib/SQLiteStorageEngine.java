@@ -0,0 +1,1359 @@
+package com.reone.kvstoragelib;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 基于sqlite的存储引擎，KVStorage 的默认引擎
+ * 主要参考：{@link com.facebook.react.modules.storage.AsyncLocalStorageUtil}、{@link com.facebook.react.modules.storage.ReactDatabaseSupplier}
+ */
+public class SQLiteStorageEngine implements StorageEngine {
+
+    public static final Factory FACTORY = SQLiteStorageEngine::new;
+
+    static final String DATABASE_NAME = "KVStorage";
+    static final String TABLE_CATALYST = "catalystLocalStorage";
+    static final String KEY_COLUMN = "key";
+    static final String VALUE_COLUMN = "value";
+    /**
+     * 过期时间（{@link System#currentTimeMillis()}），NULL表示不过期
+     */
+    static final String EXPIRES_COLUMN = "expires";
+    /**
+     * 行的版本号，每次写入时从{@link #TABLE_VERSION_SEQUENCE}分配，用于比较并设置等条件更新
+     */
+    static final String VERSION_COLUMN = "version";
+    /**
+     * 只有一行的版本号序列，记录已分配的最大版本号，只增不减，删除行后版本号也不会被重用
+     */
+    static final String TABLE_VERSION_SEQUENCE = "catalystVersionSequence";
+    /**
+     * 1: value列为TEXT
+     * 2: value列不声明类型，整数、浮点数、BLOB按原类型保存
+     * 3: 增加expires列及其索引
+     * 4: 增加version列
+     * 5: 增加json索引表（{@link JsonIndex}）
+     * 6: 版本号改为由序列表分配
+     */
+    private static final int DATABASE_VERSION = 6;
+    private static final int SLEEP_TIME_MS = 30;
+    static final int MAX_SQL_KEYS = 999;
+    /**
+     * 超过该大小（BLOB为字节数，字符串为字符数）的值保存在单独的文件中，避免超出CursorWindow（2MB）读取不到
+     */
+    static final int LARGE_VALUE_SIZE = 512 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    /**
+     * 清理没有被引用的大值文件的间隔，只清理修改时间在这之前的文件，不会删除写入中（还没有提交）的文件
+     */
+    private static final long VALUE_FILE_GC_INTERVAL_MS = 60 * 60 * 1000;
+
+    private static final String VERSION_TABLE_CREATE =
+            String.format("CREATE TABLE %s (%s TEXT PRIMARY KEY, %s NOT NULL, %s INTEGER, %s INTEGER NOT NULL DEFAULT 0)",
+                    TABLE_CATALYST, KEY_COLUMN, VALUE_COLUMN, EXPIRES_COLUMN, VERSION_COLUMN);
+    private static final String EXPIRES_INDEX_CREATE =
+            String.format("CREATE INDEX IF NOT EXISTS %s_%s ON %s (%s)", TABLE_CATALYST, EXPIRES_COLUMN, TABLE_CATALYST, EXPIRES_COLUMN);
+    private static final String EXPIRES_INDEX_DROP =
+            String.format("DROP INDEX IF EXISTS %s_%s", TABLE_CATALYST, EXPIRES_COLUMN);
+    /**
+     * 未过期的条件，参数为当前时间
+     */
+    private static final String NOT_EXPIRED =
+            String.format("(%s IS NULL OR %s > ?)", EXPIRES_COLUMN, EXPIRES_COLUMN);
+    private static final String VERSION_SEQUENCE_CREATE =
+            String.format("CREATE TABLE %s (%s INTEGER NOT NULL)", TABLE_VERSION_SEQUENCE, VALUE_COLUMN);
+    /**
+     * 从已有的最大版本号开始
+     */
+    private static final String VERSION_SEQUENCE_INIT =
+            String.format("INSERT INTO %s (%s) SELECT COALESCE(MAX(%s), 0) FROM %s",
+                    TABLE_VERSION_SEQUENCE, VALUE_COLUMN, VERSION_COLUMN, TABLE_CATALYST);
+    /**
+     * 写入的行的版本号提交到序列，由触发器在写入的同一条语句中完成
+     */
+    private static final String[] VERSION_SEQUENCE_TRIGGERS = {
+            String.format("CREATE TRIGGER %s_insert AFTER INSERT ON %s BEGIN UPDATE %s SET %s = NEW.%s WHERE %s < NEW.%s; END",
+                    TABLE_VERSION_SEQUENCE, TABLE_CATALYST, TABLE_VERSION_SEQUENCE, VALUE_COLUMN, VERSION_COLUMN, VALUE_COLUMN, VERSION_COLUMN),
+            String.format("CREATE TRIGGER %s_update AFTER UPDATE OF %s ON %s BEGIN UPDATE %s SET %s = NEW.%s WHERE %s < NEW.%s; END",
+                    TABLE_VERSION_SEQUENCE, VERSION_COLUMN, TABLE_CATALYST, TABLE_VERSION_SEQUENCE, VALUE_COLUMN, VERSION_COLUMN, VALUE_COLUMN, VERSION_COLUMN)
+    };
+    /**
+     * 写入的行的版本号：已分配的最大版本号加1，所有key共用一个序列，删除后重新插入不会回到相同的版本号
+     */
+    private static final String NEXT_VERSION =
+            String.format("(SELECT %s FROM %s) + 1", VALUE_COLUMN, TABLE_VERSION_SEQUENCE);
+    private static final String INSERT_OR_REPLACE =
+            String.format("INSERT OR REPLACE INTO %s (%s, %s, %s, %s) VALUES (?1, ?2, ?3, %s)",
+                    TABLE_CATALYST, KEY_COLUMN, VALUE_COLUMN, EXPIRES_COLUMN, VERSION_COLUMN, NEXT_VERSION);
+    /**
+     * 不存在或已过期时写入
+     */
+    private static final String INSERT_IF_ABSENT =
+            String.format("INSERT OR REPLACE INTO %s (%s, %s, %s) SELECT ?1, ?2, %s WHERE NOT EXISTS (SELECT 1 FROM %s WHERE %s = ?1 AND (%s IS NULL OR %s > ?3))",
+                    TABLE_CATALYST, KEY_COLUMN, VALUE_COLUMN, VERSION_COLUMN, NEXT_VERSION, TABLE_CATALYST, KEY_COLUMN, EXPIRES_COLUMN, EXPIRES_COLUMN);
+    /**
+     * 版本号没有变化时更新，保留过期时间
+     */
+    private static final String UPDATE_IF_VERSION =
+            String.format("UPDATE %s SET %s = ?1, %s = %s WHERE %s = ?2 AND %s = ?3",
+                    TABLE_CATALYST, VALUE_COLUMN, VERSION_COLUMN, NEXT_VERSION, KEY_COLUMN, VERSION_COLUMN);
+    private static final String DELETE_IF_VERSION =
+            String.format("DELETE FROM %s WHERE %s = ? AND %s = ?", TABLE_CATALYST, KEY_COLUMN, VERSION_COLUMN);
+    /**
+     * 只更新数值：INTEGER、REAL，或内容是整数的TEXT；压缩的值、二进制值、文件清单、其他字符串不更新
+     */
+    private static final String IS_NUMBER =
+            String.format("(typeof(%s) IN ('integer', 'real') OR (typeof(%s) = 'text' AND CAST(CAST(%s AS INTEGER) AS TEXT) = trim(%s)))",
+                    VALUE_COLUMN, VALUE_COLUMN, VALUE_COLUMN, VALUE_COLUMN);
+    private static final String INCREMENT =
+            String.format("UPDATE %s SET %s = CAST(%s AS INTEGER) + ?, %s = %s WHERE %s = ? AND %s AND %s",
+                    TABLE_CATALYST, VALUE_COLUMN, VALUE_COLUMN, VERSION_COLUMN, NEXT_VERSION, KEY_COLUMN, NOT_EXPIRED, IS_NUMBER);
+    private static final String COUNT_LIVE =
+            String.format("SELECT count(*) FROM %s WHERE %s = ? AND %s", TABLE_CATALYST, KEY_COLUMN, NOT_EXPIRED);
+    private static final String SELECT_VALUE =
+            String.format("SELECT %s FROM %s WHERE %s = ?", VALUE_COLUMN, TABLE_CATALYST, KEY_COLUMN);
+    private static final String COUNT = "SELECT count(*) FROM " + TABLE_CATALYST;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final KVStorageDatabaseSupplier supplier;
+    private final ValueCodec codec;
+    private final Random random = new Random();
+    /**
+     * 与同一个数据库文件的其他引擎实例共享
+     */
+    private final KeyFilter keyFilter;
+    private final JsonIndex jsonIndex;
+    /**
+     * 当前线程在{@link #runInSnapshot}中使用的只读连接
+     */
+    private final ThreadLocal<SQLiteDatabase> snapshot = new ThreadLocal<>();
+
+    public SQLiteStorageEngine(@NonNull Context context, @NonNull KVStorageOptions options) {
+        supplier = KVStorageDatabaseSupplier.getInstance(context, options);
+        codec = new ValueCodec(options.compressionThreshold, supplier.getValueDirectory());
+        keyFilter = supplier.mKeyFilter;
+        jsonIndex = supplier.mJsonIndex;
+    }
+
+    /**
+     * 获取数据库实例，可以直接执行sql
+     * 之后无法知道哪些key被写入，key过滤器（{@link KVStorageOptions.Builder#keyFilter}）停用
+     * 在{@link KVStorage#rxRunInTransaction}中执行sql不需要调用此方法
+     */
+    @NonNull
+    public SQLiteDatabase getDatabase() {
+        keyFilter.disable();
+        return supplier.get();
+    }
+
+    /**
+     * 在{@link KVStorage#rxRunInTransaction}的事务中获取数据库，key过滤器失效到下一次{@link #maintainKeyFilter()}
+     */
+    @NonNull
+    SQLiteDatabase getDatabaseInTransaction() {
+        keyFilter.invalidate();
+        return supplier.get();
+    }
+
+    /**
+     * 维护key过滤器：未就绪、失效或加入的key超过容量时在一个事务中按当前的key重建，之后把未保存的修改写入文件
+     * 重建需要读取所有key，在写线程中调用
+     */
+    void maintainKeyFilter() {
+        if (keyFilter.needsRebuild()) {
+            runInTransaction(engine -> {
+                SQLiteDatabase db = supplier.get();
+                long keyCount;
+                try (SQLiteStatement statement = db.compileStatement(COUNT)) {
+                    keyCount = statement.simpleQueryForLong();
+                }
+                KeyFilter.Bits bits = KeyFilter.newBits(keyCount);
+                String[] columns = {KEY_COLUMN};
+                try (Cursor cursor = db.query(TABLE_CATALYST, columns, null, null, null, null, null)) {
+                    while (cursor.moveToNext()) {
+                        bits.add(cursor.getString(0));
+                    }
+                }
+                keyFilter.publish(bits);
+                return null;
+            });
+        }
+        keyFilter.saveIfDirty();
+    }
+
+    /**
+     * 值压缩及其统计
+     */
+    @NonNull
+    public ValueCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * 数据库文件大小（字节），不含WAL文件
+     */
+    public long getDatabaseSize() {
+        return supplier.getDatabaseFile().length();
+    }
+
+    /**
+     * 数据库大小上限（字节），超过后写入会抛出{@link android.database.sqlite.SQLiteFullException}
+     */
+    public long getMaximumDatabaseSize() {
+        return supplier.mMaximumDatabaseSize;
+    }
+
+    @Nullable
+    @Override
+    public String get(@NonNull String key) {
+        return getItemImpl(supplier.get(), key, null);
+    }
+
+    /**
+     * 同{@link #get(String)}，有过期时间时放入expiries
+     */
+    @Nullable
+    String get(@NonNull String key, @NonNull Map<String, Long> expiries) {
+        return getItemImpl(supplier.get(), key, expiries);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, String> getAll(@NonNull String[] keys) {
+        return getAll(keys, null);
+    }
+
+    /**
+     * 按{@link #MAX_SQL_KEYS}分组用 IN 查询，多于一组时在同一个事务中完成
+     *
+     * @param expiries 不为null时放入有过期时间的key的过期时间
+     */
+    @NonNull
+    Map<String, String> getAll(@NonNull String[] keys, @Nullable Map<String, Long> expiries) {
+        Map<String, String> result = new LinkedHashMap<>(keys.length);
+        String[] columns = {KEY_COLUMN, VALUE_COLUMN, EXPIRES_COLUMN};
+        SQLiteDatabase db = supplier.get();
+        keys = filterKeys(keys);
+        // 一个参数留给当前时间
+        int groupSize = MAX_SQL_KEYS - 1;
+        // 只有一组时不需要事务，WAL模式下可以走读连接，不必等待写事务
+        boolean inTransaction = keys.length > groupSize;
+        if (inTransaction) {
+            db.beginTransaction();
+        }
+        try {
+            String now = String.valueOf(System.currentTimeMillis());
+            for (int keyStart = 0; keyStart < keys.length; keyStart += groupSize) {
+                int keyCount = Math.min(keys.length - keyStart, groupSize);
+                String[] selectionArgs = new String[keyCount + 1];
+                System.arraycopy(keys, keyStart, selectionArgs, 0, keyCount);
+                selectionArgs[keyCount] = now;
+                try (Cursor cursor = db.query(
+                        TABLE_CATALYST,
+                        columns,
+                        buildKeySelection(keyCount) + " AND " + NOT_EXPIRED,
+                        selectionArgs,
+                        null,
+                        null,
+                        null)) {
+                    if (cursor.moveToFirst()) {
+                        do {
+                            String key = cursor.getString(0);
+                            result.put(key, codec.read(cursor, 1));
+                            if (expiries != null && !cursor.isNull(2)) {
+                                expiries.put(key, cursor.getLong(2));
+                            }
+                        } while (cursor.moveToNext());
+                    }
+                }
+            }
+            if (inTransaction) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (inTransaction) {
+                db.endTransaction();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean put(@NonNull String key, @Nullable String value) {
+        return setItemImpl(supplier.get(), key, value, 0);
+    }
+
+    /**
+     * 写入带过期时间的值，过期后读取不到，由{@link #deleteExpired}删除
+     *
+     * @param expiresAt 过期时间（{@link System#currentTimeMillis()}）
+     */
+    public boolean put(@NonNull String key, @Nullable String value, long expiresAt) {
+        return setItemImpl(supplier.get(), key, value, expiresAt);
+    }
+
+    /**
+     * 按原始类型读取，见{@link ValueCodec#readValue}
+     *
+     * @return Long、Double、String或byte[]，不存在时返回null
+     */
+    @Nullable
+    Object getValue(@NonNull String key) {
+        if (!keyFilter.mightContain(key)) {
+            return null;
+        }
+        String[] columns = {VALUE_COLUMN};
+        String[] selectionArgs = {key, String.valueOf(System.currentTimeMillis())};
+        try (Cursor cursor = supplier.get().query(
+                TABLE_CATALYST,
+                columns,
+                KEY_COLUMN + "=? AND " + NOT_EXPIRED,
+                selectionArgs,
+                null,
+                null,
+                null)) {
+            return cursor.moveToFirst() ? codec.readValue(cursor, 0) : null;
+        }
+    }
+
+    /**
+     * 以sqlite原生类型写入：Long为INTEGER，Double为REAL，byte[]为BLOB
+     */
+    boolean putValue(@NonNull String key, @NonNull Object value) {
+        try (SQLiteStatement statement = supplier.get().compileStatement(INSERT_OR_REPLACE)) {
+            statement.bindString(1, key);
+            bindTypedValue(statement, 2, value);
+            return executeInsert(statement, key);
+        }
+    }
+
+    private static void bindTypedValue(SQLiteStatement statement, int index, Object value) {
+        if (value instanceof Long) {
+            statement.bindLong(index, (Long) value);
+        } else if (value instanceof Double) {
+            statement.bindDouble(index, (Double) value);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, ValueCodec.wrapBytes((byte[]) value));
+        } else {
+            throw new IllegalArgumentException("Unsupported value type " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * 读取值及其版本号，已过期的值视为不存在
+     */
+    @Nullable
+    VersionedValue getVersioned(@NonNull String key) {
+        if (!keyFilter.mightContain(key)) {
+            return null;
+        }
+        String[] columns = {VALUE_COLUMN, VERSION_COLUMN};
+        String[] selectionArgs = {key, String.valueOf(System.currentTimeMillis())};
+        try (Cursor cursor = supplier.get().query(
+                TABLE_CATALYST,
+                columns,
+                KEY_COLUMN + "=? AND " + NOT_EXPIRED,
+                selectionArgs,
+                null,
+                null,
+                null)) {
+            return cursor.moveToFirst() ? new VersionedValue(codec.read(cursor, 0), cursor.getLong(1)) : null;
+        }
+    }
+
+    /**
+     * 一条 UPDATE ... WHERE version = ? 语句，版本号变化（期间有其他写入）时不更新
+     *
+     * @param value null表示删除
+     * @return 是否更新成功
+     */
+    boolean replaceIfVersion(@NonNull String key, @Nullable String value, long version) {
+        SQLiteDatabase db = supplier.get();
+        if (value == null) {
+            try (SQLiteStatement statement = db.compileStatement(DELETE_IF_VERSION)) {
+                statement.bindString(1, key);
+                statement.bindLong(2, version);
+                return statement.executeUpdateDelete() > 0;
+            }
+        }
+        if (jsonIndex.accepts(value)) {
+            return runInTransaction(engine -> updateIfVersion(db, key, value, version));
+        }
+        return updateIfVersion(db, key, value, version);
+    }
+
+    private boolean updateIfVersion(SQLiteDatabase db, String key, String value, long version) {
+        try (SQLiteStatement statement = db.compileStatement(UPDATE_IF_VERSION)) {
+            bindValue(statement, 1, value);
+            statement.bindString(2, key);
+            statement.bindLong(3, version);
+            boolean updated = statement.executeUpdateDelete() > 0;
+            if (updated) {
+                jsonIndex.add(db, key, value);
+            }
+            return updated;
+        }
+    }
+
+    /**
+     * 一条 INSERT ... WHERE NOT EXISTS 语句，key不存在或已过期时写入
+     *
+     * @return 是否写入
+     */
+    boolean insertIfAbsent(@NonNull String key, @NonNull String value) {
+        if (jsonIndex.accepts(value)) {
+            return runInTransaction(engine -> insertIfAbsentImpl(key, value));
+        }
+        return insertIfAbsentImpl(key, value);
+    }
+
+    private boolean insertIfAbsentImpl(String key, String value) {
+        SQLiteDatabase db = supplier.get();
+        try (SQLiteStatement statement = db.compileStatement(INSERT_IF_ABSENT)) {
+            statement.bindString(1, key);
+            bindValue(statement, 2, value);
+            statement.bindLong(3, System.currentTimeMillis());
+            keyFilter.beforeAdd();
+            boolean inserted = false;
+            try {
+                inserted = statement.executeUpdateDelete() > 0;
+            } finally {
+                keyFilter.afterAdd(key, inserted);
+            }
+            if (inserted) {
+                jsonIndex.add(db, key, value);
+            }
+            return inserted;
+        }
+    }
+
+    /**
+     * 原子地把key对应的整数加上delta，不存在或已过期时写入delta
+     * 由一条 UPDATE ... SET value = CAST(value AS INTEGER) + ? WHERE 旧值是数值 完成，不在Java中读-改-写；
+     * 浮点数截断为整数
+     *
+     * @return 增加后的值
+     * @throws NumberFormatException 旧值不是数值（与其余引擎一致），旧值不变
+     */
+    public long incrementAndGet(@NonNull String key, long delta) {
+        return runInTransaction(engine -> {
+            SQLiteDatabase db = supplier.get();
+            String now = String.valueOf(System.currentTimeMillis());
+            try (SQLiteStatement update = db.compileStatement(INCREMENT)) {
+                update.bindLong(1, delta);
+                update.bindString(2, key);
+                update.bindString(3, now);
+                if (update.executeUpdateDelete() == 0) {
+                    try (SQLiteStatement count = db.compileStatement(COUNT_LIVE)) {
+                        count.bindString(1, key);
+                        count.bindString(2, now);
+                        if (count.simpleQueryForLong() > 0) {
+                            throw new NumberFormatException("Value of " + key + " is not an integer");
+                        }
+                    }
+                    putValue(key, delta);
+                    return delta;
+                }
+            }
+            try (SQLiteStatement select = db.compileStatement(SELECT_VALUE)) {
+                select.bindString(1, key);
+                return select.simpleQueryForLong();
+            }
+        });
+    }
+
+    /**
+     * 复用同一条预编译的 INSERT OR REPLACE 语句
+     */
+    @Override
+    public int putAll(@NonNull Map<String, String> keyValues) {
+        return putAll(keyValues, null);
+    }
+
+    /**
+     * 批量写入带过期时间的值
+     *
+     * @param expiries 有过期时间的key的过期时间，不在其中的key不过期
+     */
+    int putAll(@NonNull Map<String, String> keyValues, @Nullable Map<String, Long> expiries) {
+        return putValues(keyValues, expiries);
+    }
+
+    /**
+     * 批量写入带过期时间的值，String与{@link #putAll}相同，Long、Double、byte[]与{@link #putValue}相同
+     *
+     * @param expiries 有过期时间的key的过期时间，不在其中的key不过期
+     */
+    int putValues(@NonNull Map<String, ?> keyValues, @Nullable Map<String, Long> expiries) {
+        return runInTransaction(engine -> {
+            try (SQLiteStatement statement = supplier.get().compileStatement(INSERT_OR_REPLACE)) {
+                int lineCount = 0;
+                for (Map.Entry<String, ?> entry : keyValues.entrySet()) {
+                    Long expiresAt = expiries == null ? null : expiries.get(entry.getKey());
+                    Object value = entry.getValue();
+                    boolean inserted;
+                    if (value == null) {
+                        continue;
+                    } else if (value instanceof String) {
+                        inserted = insertItemImpl(statement, entry.getKey(), (String) value, expiresAt == null ? 0 : expiresAt);
+                    } else {
+                        statement.bindString(1, entry.getKey());
+                        bindTypedValue(statement, 2, value);
+                        if (expiresAt != null) {
+                            statement.bindLong(3, expiresAt);
+                        }
+                        inserted = executeInsert(statement, entry.getKey());
+                        statement.clearBindings();
+                    }
+                    if (inserted) {
+                        lineCount++;
+                    }
+                }
+                return lineCount;
+            }
+        });
+    }
+
+    /**
+     * 删除索引，大量导入前调用，导入后用{@link #createIndexes()}一次性重建，避免逐行维护索引
+     * 包括expires列的索引、json索引（{@link JsonIndex#drop}）和key过滤器（失效，期间不使用）
+     * 进程在重建前退出时，下次打开数据库时重建
+     */
+    void dropIndexes() {
+        SQLiteDatabase db = supplier.get();
+        db.execSQL(EXPIRES_INDEX_DROP);
+        jsonIndex.drop(db);
+        keyFilter.invalidate();
+    }
+
+    void createIndexes() {
+        SQLiteDatabase db = supplier.get();
+        db.execSQL(EXPIRES_INDEX_CREATE);
+        jsonIndex.restore(db, codec);
+        maintainKeyFilter();
+    }
+
+    @Override
+    public int delete(@NonNull String... keys) {
+        return deleteImpl(keys, null);
+    }
+
+    /**
+     * 找出最多limit个在now之前过期的key，走expires列的索引
+     */
+    @NonNull
+    List<String> expiredKeys(long now, int limit) {
+        List<String> keys = new ArrayList<>();
+        String[] columns = {KEY_COLUMN};
+        String[] selectionArgs = {String.valueOf(now)};
+        try (Cursor cursor = supplier.get().query(
+                TABLE_CATALYST,
+                columns,
+                EXPIRES_COLUMN + " <= ?",
+                selectionArgs,
+                null,
+                null,
+                null,
+                String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                keys.add(cursor.getString(0));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 删除给定key中在now之前过期的，之后重新写入（不再过期）的key不会被删除
+     *
+     * @return 删除的行数
+     */
+    int deleteExpired(@NonNull String[] keys, long now) {
+        return deleteImpl(keys, String.valueOf(now));
+    }
+
+    /**
+     * 按组用 IN 删除，在一个事务中完成
+     *
+     * @param expiredBefore 不为null时只删除在该时间之前过期的行
+     */
+    private int deleteImpl(String[] keys, @Nullable String expiredBefore) {
+        return runInTransaction(engine -> {
+            int groupSize = expiredBefore == null ? MAX_SQL_KEYS : MAX_SQL_KEYS - 1;
+            int lineCount = 0;
+            for (int keyStart = 0; keyStart < keys.length; keyStart += groupSize) {
+                int keyCount = Math.min(keys.length - keyStart, groupSize);
+                String selection = buildKeySelection(keyCount);
+                String[] selectionArgs;
+                if (expiredBefore == null) {
+                    selectionArgs = buildKeySelectionArgs(keys, keyStart, keyCount);
+                } else {
+                    selection += " AND " + EXPIRES_COLUMN + " <= ?";
+                    selectionArgs = new String[keyCount + 1];
+                    System.arraycopy(keys, keyStart, selectionArgs, 0, keyCount);
+                    selectionArgs[keyCount] = expiredBefore;
+                }
+                lineCount += supplier.get().delete(TABLE_CATALYST, selection, selectionArgs);
+            }
+            return lineCount;
+        });
+    }
+
+    @NonNull
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        String[] columns = {KEY_COLUMN};
+        String[] selectionArgs = {String.valueOf(System.currentTimeMillis())};
+        try (Cursor cursor = supplier.get()
+                .query(TABLE_CATALYST, columns, NOT_EXPIRED, selectionArgs, null, null, null)) {
+            if (cursor.moveToFirst()) {
+                do {
+                    keys.add(cursor.getString(0));
+                } while (cursor.moveToNext());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * keyset分页：WHERE key > ? AND key >= prefix ORDER BY key LIMIT n，走主键索引
+     * 以prefix开头的key在索引中是连续的，遇到第一个不匹配的key即可结束
+     */
+    @NonNull
+    @Override
+    public List<Map.Entry<String, String>> scan(@Nullable String afterKey, @Nullable String prefix, int limit, boolean withValues) {
+        return scan(afterKey, prefix, limit, withValues, null, null);
+    }
+
+    /**
+     * @param expiries    不为null时放入有过期时间的key的过期时间
+     * @param typedValues 不为null时不是字符串的值按原始类型（Long、Double、byte[]）放入其中，返回的页中对应的值为null
+     */
+    @NonNull
+    List<Map.Entry<String, String>> scan(@Nullable String afterKey, @Nullable String prefix, int limit, boolean withValues,
+                                         @Nullable Map<String, Long> expiries, @Nullable Map<String, Object> typedValues) {
+        List<String> conditions = new ArrayList<>(3);
+        List<String> args = new ArrayList<>(3);
+        conditions.add(NOT_EXPIRED);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        if (afterKey != null) {
+            conditions.add(KEY_COLUMN + " > ?");
+            args.add(afterKey);
+        }
+        if (!TextUtils.isEmpty(prefix)) {
+            conditions.add(KEY_COLUMN + " >= ?");
+            args.add(prefix);
+        }
+        String[] columns = withValues ? new String[]{KEY_COLUMN, VALUE_COLUMN, EXPIRES_COLUMN} : new String[]{KEY_COLUMN};
+        List<Map.Entry<String, String>> page = new ArrayList<>(Math.min(limit, 1024));
+        try (Cursor cursor = readDatabase().query(
+                TABLE_CATALYST,
+                columns,
+                TextUtils.join(" AND ", conditions),
+                args.toArray(new String[0]),
+                null,
+                null,
+                KEY_COLUMN,
+                String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(0);
+                if (prefix != null && !key.startsWith(prefix)) {
+                    break;
+                }
+                String value = null;
+                if (withValues && typedValues != null) {
+                    Object typed = codec.readValue(cursor, 1);
+                    if (typed instanceof String) {
+                        value = (String) typed;
+                    } else {
+                        typedValues.put(key, typed);
+                    }
+                } else if (withValues) {
+                    value = codec.read(cursor, 1);
+                }
+                page.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+                if (withValues && expiries != null && !cursor.isNull(2)) {
+                    expiries.put(key, cursor.getLong(2));
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * 按json索引查询，见{@link JsonIndex#query}
+     *
+     * @return 索引字段等于value的未过期的键值对，按key排序
+     */
+    @NonNull
+    Map<String, String> query(@NonNull String indexName, @NonNull String value) {
+        Map<String, String> result = new LinkedHashMap<>();
+        jsonIndex.query(supplier.get(), codec, indexName, value, result);
+        return result;
+    }
+
+    @Override
+    public int clear() {
+        return supplier.clear();
+    }
+
+    @Override
+    public <R> R runInTransaction(@NonNull KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        SQLiteDatabase db = supplier.get();
+        db.beginTransaction();
+        try {
+            R result = func.invoke(this);
+            db.setTransactionSuccessful();
+            return result;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public boolean inTransaction() {
+        return supplier.get().inTransaction();
+    }
+
+    /**
+     * 在同一时刻的只读快照中执行func，func中只能通过本引擎的{@link #scan}读取
+     * WAL模式下打开一个单独的只读连接并在上面开启读事务，期间写操作不被阻塞；
+     * 非WAL模式或当前线程已在事务中时退回{@link #runInTransaction}
+     */
+    <R> R runInSnapshot(@NonNull KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        if (!supplier.mOptions.walEnabled || snapshot.get() != null || inTransaction()) {
+            return runInTransaction(func);
+        }
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(supplier.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            // beginTransaction总是 BEGIN EXCLUSIVE/IMMEDIATE，只读连接上不能执行，而且会阻塞写操作；
+            // 事务外的 SAVEPOINT 相当于 BEGIN DEFERRED，第一次读取时固定快照
+            db.execSQL("SAVEPOINT snapshot");
+            snapshot.set(db);
+            try {
+                return func.invoke(this);
+            } finally {
+                snapshot.remove();
+                db.execSQL("RELEASE snapshot");
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * 在{@link #runInSnapshot}中返回快照连接，否则返回数据库实例
+     */
+    private SQLiteDatabase readDatabase() {
+        SQLiteDatabase db = snapshot.get();
+        return db != null ? db : supplier.get();
+    }
+
+    @Override
+    public void clearAndClose() {
+        supplier.clearAndCloseDatabase();
+    }
+
+    /**
+     * 去掉过滤器判断为一定不存在的key，都可能存在时返回原数组
+     */
+    private String[] filterKeys(String[] keys) {
+        List<String> filtered = null;
+        for (int i = 0; i < keys.length; i++) {
+            if (!keyFilter.mightContain(keys[i])) {
+                if (filtered == null) {
+                    filtered = new ArrayList<>(Arrays.asList(keys).subList(0, i));
+                }
+            } else if (filtered != null) {
+                filtered.add(keys[i]);
+            }
+        }
+        return filtered == null ? keys : filtered.toArray(new String[filtered.size()]);
+    }
+
+    /**
+     * Returns the value of the given key, or null if not found.
+     * 已过期的值视为不存在
+     */
+    @Nullable
+    private String getItemImpl(SQLiteDatabase db, String key, @Nullable Map<String, Long> expiries) {
+        if (!keyFilter.mightContain(key)) {
+            return null;
+        }
+        String[] columns = {VALUE_COLUMN, EXPIRES_COLUMN};
+        String[] selectionArgs = {key, String.valueOf(System.currentTimeMillis())};
+
+        try (Cursor cursor = db.query(
+                TABLE_CATALYST,
+                columns,
+                KEY_COLUMN + "=? AND " + NOT_EXPIRED,
+                selectionArgs,
+                null,
+                null,
+                null)) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            } else {
+                if (expiries != null && !cursor.isNull(1)) {
+                    expiries.put(key, cursor.getLong(1));
+                }
+                return codec.read(cursor, 0);
+            }
+        }
+    }
+
+    /**
+     * 设置给定键的值，如果成功则返回true，否则返回false。
+     * 超过压缩阈值的值压缩后以BLOB保存；需要加入json索引时与索引在一个事务中写入
+     *
+     * @param expiresAt 过期时间，0表示不过期（清除之前的过期时间）
+     */
+    private boolean setItemImpl(SQLiteDatabase db, String key, String value, long expiresAt) {
+        if (value == null) {
+            return false;
+        }
+        if (jsonIndex.accepts(value) && !db.inTransaction()) {
+            return runInTransaction(engine -> setItemImpl(db, key, value, expiresAt));
+        }
+        try (SQLiteStatement statement = db.compileStatement(INSERT_OR_REPLACE)) {
+            return insertItemImpl(statement, key, value, expiresAt);
+        }
+    }
+
+    /**
+     * 用预编译的 INSERT OR REPLACE 语句写入一行，版本号从序列分配，并更新json索引
+     *
+     * @param expiresAt 过期时间，0表示不过期
+     */
+    private boolean insertItemImpl(SQLiteStatement statement, String key, String value, long expiresAt) {
+        statement.bindString(1, key);
+        bindValue(statement, 2, value);
+        if (expiresAt > 0) {
+            statement.bindLong(3, expiresAt);
+        }
+        boolean inserted = executeInsert(statement, key);
+        statement.clearBindings();
+        if (inserted) {
+            jsonIndex.add(supplier.get(), key, value);
+        }
+        return inserted;
+    }
+
+    /**
+     * 执行 INSERT 并把key加入过滤器
+     */
+    private boolean executeInsert(SQLiteStatement statement, String key) {
+        keyFilter.beforeAdd();
+        boolean inserted = false;
+        try {
+            inserted = (-1 != statement.executeInsert());
+        } finally {
+            keyFilter.afterAdd(key, inserted);
+        }
+        return inserted;
+    }
+
+    /**
+     * 超过压缩阈值的值压缩后以BLOB绑定，其余以TEXT绑定
+     * 压缩后仍超过{@link #LARGE_VALUE_SIZE}的值写入单独的文件，绑定文件清单
+     */
+    private void bindValue(SQLiteStatement statement, int index, String value) {
+        byte[] compressed = codec.encode(value);
+        if ((compressed != null ? compressed.length : value.length()) > LARGE_VALUE_SIZE) {
+            byte[] bytes = value.getBytes(UTF_8);
+            try {
+                long fileId = writeValueFile(bytes, bytes.length, null, null);
+                statement.bindBlob(index, ValueCodec.fileManifest(false, bytes.length, fileId));
+            } catch (IOException e) {
+                throw new SQLiteException("Writing value file failed", e);
+            }
+        } else if (compressed != null) {
+            statement.bindBlob(index, compressed);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * 从输入流写入二进制值，不关闭输入流
+     * 不超过{@link #LARGE_VALUE_SIZE}时与{@link #putValue}相同；否则边读边写入单独的文件，写完后用一条语句写入文件清单
+     */
+    boolean writeValue(@NonNull String key, @NonNull InputStream in) throws IOException {
+        byte[] head = new byte[Math.min(STREAM_BUFFER_SIZE, LARGE_VALUE_SIZE + 1)];
+        int headLength = 0;
+        int count;
+        while (headLength <= LARGE_VALUE_SIZE && (count = in.read(head, headLength, head.length - headLength)) != -1) {
+            headLength += count;
+            if (headLength == head.length && headLength <= LARGE_VALUE_SIZE) {
+                head = Arrays.copyOf(head, Math.min(head.length * 2, LARGE_VALUE_SIZE + 1));
+            }
+        }
+        if (headLength <= LARGE_VALUE_SIZE) {
+            return putValue(key, Arrays.copyOf(head, headLength));
+        }
+        long[] length = new long[1];
+        long fileId = writeValueFile(head, headLength, in, length);
+        try (SQLiteStatement statement = supplier.get().compileStatement(INSERT_OR_REPLACE)) {
+            statement.bindString(1, key);
+            statement.bindBlob(2, ValueCodec.fileManifest(true, length[0], fileId));
+            return executeInsert(statement, key);
+        }
+    }
+
+    /**
+     * 打开值的输入流，保存在文件中的值直接读取文件，其余值一次读入内存
+     * 字符串为UTF-8字节，二进制值为原始字节
+     *
+     * @return 不存在或已过期时返回null
+     */
+    @Nullable
+    InputStream openValueStream(@NonNull String key) throws IOException {
+        if (!keyFilter.mightContain(key)) {
+            return null;
+        }
+        String[] columns = {VALUE_COLUMN};
+        String[] selectionArgs = {key, String.valueOf(System.currentTimeMillis())};
+        for (int attempt = 0; ; attempt++) {
+            Object value;
+            long fileId = -1;
+            try (Cursor cursor = supplier.get().query(
+                    TABLE_CATALYST,
+                    columns,
+                    KEY_COLUMN + "=? AND " + NOT_EXPIRED,
+                    selectionArgs,
+                    null,
+                    null,
+                    null)) {
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                if (cursor.getType(0) == Cursor.FIELD_TYPE_BLOB) {
+                    byte[] blob = cursor.getBlob(0);
+                    fileId = ValueCodec.fileIdOf(blob);
+                    value = fileId < 0 ? codec.decode(blob) : null;
+                } else {
+                    value = cursor.getString(0);
+                }
+            }
+            if (fileId < 0) {
+                return new ByteArrayInputStream(value instanceof byte[] ? (byte[]) value : value.toString().getBytes(UTF_8));
+            }
+            try {
+                return new FileInputStream(codec.valueFile(fileId));
+            } catch (FileNotFoundException e) {
+                // 读到清单后值被替换，文件已被清理
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 先写入临时文件再重命名，文件名为随机的id
+     *
+     * @param head   已经从in中读出的数据
+     * @param in     剩余的数据，可以为null
+     * @param length 不为null时放入写入的总字节数
+     * @return 文件id
+     */
+    private long writeValueFile(byte[] head, int headLength, @Nullable InputStream in, @Nullable long[] length) throws IOException {
+        File directory = supplier.getValueDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Creating " + directory + " failed");
+        }
+        long fileId;
+        File file;
+        do {
+            fileId = random.nextLong() & Long.MAX_VALUE;
+            file = codec.valueFile(fileId);
+        } while (file.exists());
+        File temp = new File(file.getPath() + ".tmp");
+        long total = headLength;
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(head, 0, headLength);
+            if (in != null) {
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                    total += count;
+                }
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Renaming " + temp + " failed");
+        }
+        if (length != null) {
+            length[0] = total;
+        }
+        return fileId;
+    }
+
+    /**
+     * 删除没有被任何行引用的大值文件（值被替换、删除或事务回滚后留下的），每{@link #VALUE_FILE_GC_INTERVAL_MS}最多执行一次
+     * 在写事务中查询引用，期间不会有新的清单提交；修改时间较近的文件可能属于还没有提交的写入，不删除
+     *
+     * @return 删除的文件数
+     */
+    int deleteUnusedValueFiles() {
+        long now = System.currentTimeMillis();
+        File[] files = supplier.getValueDirectory().listFiles();
+        if (files == null || files.length == 0 || now - supplier.mLastValueFileGc < VALUE_FILE_GC_INTERVAL_MS) {
+            return 0;
+        }
+        supplier.mLastValueFileGc = now;
+        return runInTransaction(engine -> {
+            Set<Long> used = new HashSet<>();
+            String[] columns = {VALUE_COLUMN};
+            try (Cursor cursor = supplier.get().query(
+                    TABLE_CATALYST,
+                    columns,
+                    "typeof(" + VALUE_COLUMN + ") = 'blob' AND length(" + VALUE_COLUMN + ") = " + ValueCodec.FILE_MANIFEST_SIZE,
+                    null,
+                    null,
+                    null,
+                    null)) {
+                while (cursor.moveToNext()) {
+                    long fileId = ValueCodec.fileIdOf(cursor.getBlob(0));
+                    if (fileId >= 0) {
+                        used.add(fileId);
+                    }
+                }
+            }
+            int deleted = 0;
+            File[] candidates = supplier.getValueDirectory().listFiles();
+            if (candidates == null) {
+                return 0;
+            }
+            for (File file : candidates) {
+                if (file.lastModified() >= now - VALUE_FILE_GC_INTERVAL_MS) {
+                    continue;
+                }
+                String name = file.getName();
+                boolean temp = name.endsWith(".tmp");
+                try {
+                    long fileId = Long.parseLong(temp ? name.substring(0, name.length() - 4) : name);
+                    if ((temp || !used.contains(fileId)) && file.delete()) {
+                        deleted++;
+                    }
+                } catch (NumberFormatException e) {
+                    // 不是由本类写入的文件
+                }
+            }
+            return deleted;
+        });
+    }
+
+    /**
+     * Build the String required for an SQL select statement:
+     * WHERE key IN (?, ?, ..., ?)
+     * without 'WHERE' and with selectionCount '?'
+     */
+    static String buildKeySelection(int selectionCount) {
+        String[] list = new String[selectionCount];
+        Arrays.fill(list, "?");
+        return KEY_COLUMN + " IN (" + TextUtils.join(", ", list) + ")";
+    }
+
+    /**
+     * Build the String[] arguments needed for an SQL selection, i.e.:
+     * {a, b, c}
+     * to be used in the SQL select statement: WHERE key in (?, ?, ?)
+     */
+    static String[] buildKeySelectionArgs(String[] keys, int start, int count) {
+        String[] selectionArgs = new String[count];
+        System.arraycopy(keys, start, selectionArgs, 0, count);
+        return selectionArgs;
+    }
+
+    /**
+     * 值及其版本号
+     */
+    static final class VersionedValue {
+        @Nullable
+        final String value;
+        final long version;
+
+        VersionedValue(@Nullable String value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    private static class KVStorageDatabaseSupplier extends SQLiteOpenHelper {
+        @Nullable
+        private volatile SQLiteDatabase mDb;
+        private Context mContext;
+        private String mDatabaseName;
+        private KVStorageOptions mOptions;
+        private long mMaximumDatabaseSize;
+        final KeyFilter mKeyFilter;
+        final JsonIndex mJsonIndex;
+        volatile long mLastValueFileGc = 0;
+
+        /**
+         * 每个数据库文件一个实例，同一个文件只能有一个SQLiteOpenHelper
+         */
+        @SuppressLint("StaticFieldLeak")
+        private static final Map<String, KVStorageDatabaseSupplier> mInstances = new HashMap<>();
+
+        public static KVStorageDatabaseSupplier getInstance(Context context, KVStorageOptions options) {
+            String databaseName = options.fileName(DATABASE_NAME);
+            synchronized (mInstances) {
+                KVStorageDatabaseSupplier instance = mInstances.get(databaseName);
+                if (instance == null) {
+                    instance = new KVStorageDatabaseSupplier(context.getApplicationContext(), databaseName, options);
+                    mInstances.put(databaseName, instance);
+                }
+                return instance;
+            }
+        }
+
+        KVStorageDatabaseSupplier(Context context, String databaseName, KVStorageOptions options) {
+            super(context, databaseName, null, DATABASE_VERSION);
+            mContext = context;
+            mDatabaseName = databaseName;
+            mOptions = options;
+            mMaximumDatabaseSize = options.maxDatabaseSize;
+            mKeyFilter = new KeyFilter(options.keyFilter ? new File(getDatabaseFile().getPath() + "-keys") : null);
+            mJsonIndex = new JsonIndex(options.jsonIndexes);
+            // WAL模式下读操作使用连接池中的读连接，不会被写事务阻塞
+            setWriteAheadLoggingEnabled(options.walEnabled);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            if (mOptions.synchronous != null) {
+                db.execSQL("PRAGMA synchronous = " + mOptions.synchronous.name());
+            }
+            if (mOptions.pageSize > 0) {
+                // 只对新建的数据库生效
+                db.setPageSize(mOptions.pageSize);
+            }
+            if (mOptions.sqliteCacheSize > 0) {
+                // 负数表示以KiB为单位
+                db.execSQL("PRAGMA cache_size = -" + mOptions.sqliteCacheSize);
+            }
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(VERSION_TABLE_CREATE);
+            db.execSQL(EXPIRES_INDEX_CREATE);
+            createJsonIndexTables(db);
+            createVersionSequence(db);
+        }
+
+        private static void createVersionSequence(SQLiteDatabase db) {
+            db.execSQL(VERSION_SEQUENCE_CREATE);
+            db.execSQL(VERSION_SEQUENCE_INIT);
+            for (String trigger : VERSION_SEQUENCE_TRIGGERS) {
+                db.execSQL(trigger);
+            }
+        }
+
+        private static void createJsonIndexTables(SQLiteDatabase db) {
+            db.execSQL(JsonIndex.INDEX_TABLE_CREATE);
+            db.execSQL(JsonIndex.KEY_INDEX_CREATE);
+            db.execSQL(JsonIndex.DEFINITION_TABLE_CREATE);
+        }
+
+        /**
+         * 在SQLiteOpenHelper开启的事务中执行，失败时回滚，数据不会丢失
+         */
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 2) {
+                // sqlite不能修改列的类型，重建表后复制数据，已有的值仍为TEXT
+                // 按最新的表结构重建，之后的版本不需要再修改表结构
+                String oldTable = TABLE_CATALYST + "_v1";
+                db.execSQL("ALTER TABLE " + TABLE_CATALYST + " RENAME TO " + oldTable);
+                db.execSQL(VERSION_TABLE_CREATE);
+                db.execSQL(String.format("INSERT INTO %s (%s, %s) SELECT %s, %s FROM %s",
+                        TABLE_CATALYST, KEY_COLUMN, VALUE_COLUMN, KEY_COLUMN, VALUE_COLUMN, oldTable));
+                db.execSQL("DROP TABLE " + oldTable);
+            } else {
+                if (oldVersion < 3) {
+                    db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER", TABLE_CATALYST, EXPIRES_COLUMN));
+                }
+                if (oldVersion < 4) {
+                    db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0", TABLE_CATALYST, VERSION_COLUMN));
+                }
+            }
+            if (oldVersion < 3) {
+                db.execSQL(EXPIRES_INDEX_CREATE);
+            }
+            if (oldVersion < 5) {
+                createJsonIndexTables(db);
+            }
+            if (oldVersion < 6) {
+                createVersionSequence(db);
+            }
+        }
+
+        /**
+         * 导入时删除的索引没有重建（进程在导入中退出）时重建；使json索引与声明一致
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            if (!db.isReadOnly()) {
+                db.execSQL(EXPIRES_INDEX_CREATE);
+                mJsonIndex.sync(db, new ValueCodec(0, getValueDirectory()));
+            }
+            mKeyFilter.load();
+        }
+
+        /**
+         * Verify the database exists and is open.
+         */
+        private synchronized void ensureDatabase() {
+            if (mDb != null && mDb.isOpen()) {
+                return;
+            }
+            // Sometimes retrieving the database fails. We do 2 retries: first without database deletion
+            // and then with deletion.
+            SQLiteException lastSQLiteException = null;
+            for (int tries = 0; tries < 2; tries++) {
+                try {
+                    if (tries > 0) {
+                        deleteDatabase();
+                    }
+                    mDb = getWritableDatabase();
+                    break;
+                } catch (SQLiteException e) {
+                    lastSQLiteException = e;
+                }
+                // Wait before retrying.
+                try {
+                    Thread.sleep(SLEEP_TIME_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (mDb == null && lastSQLiteException != null) {
+                throw lastSQLiteException;
+            }
+            // This is a sane limit to protect the user from the app storing too much data in the database.
+            // This also protects the database from filling up the disk cache and becoming malformed
+            // (endTransaction() calls will throw an exception, not rollback, and leave the db malformed).
+            if (mDb != null) {
+                mDb.setMaximumSize(mMaximumDatabaseSize);
+            }
+        }
+
+        /**
+         * Create and/or open the database.
+         * 数据库已打开时不获取锁，读写可以并发进行（由SQLiteDatabase的连接池保证线程安全）
+         */
+        public SQLiteDatabase get() {
+            SQLiteDatabase db = mDb;
+            if (db != null && db.isOpen()) {
+                return db;
+            }
+            synchronized (this) {
+                ensureDatabase();
+                return mDb;
+            }
+        }
+
+        private synchronized void clearAndCloseDatabase() throws RuntimeException {
+            try {
+                clear();
+                closeDatabase();
+            } catch (Exception e) {
+                // Clearing the database has failed, delete it instead.
+                if (deleteDatabase()) {
+                    return;
+                }
+                // Everything failed, throw
+                throw new RuntimeException("Clearing and deleting database " + mDatabaseName + " failed");
+            }
+        }
+
+        /**
+         * 清空时过滤器也清空；在外层事务中时不清空，事务可能回滚
+         */
+        public synchronized int clear() {
+            SQLiteDatabase db = get();
+            mKeyFilter.beforeAdd();
+            boolean success = false;
+            try {
+                if (!db.inTransaction()) {
+                    mKeyFilter.reset();
+                }
+                int lineCount = db.delete(TABLE_CATALYST, null, null);
+                success = true;
+                return lineCount;
+            } finally {
+                if (!success) {
+                    mKeyFilter.invalidate();
+                }
+                mKeyFilter.afterAdd(null, false);
+            }
+        }
+
+        File getDatabaseFile() {
+            return mContext.getDatabasePath(mDatabaseName);
+        }
+
+        /**
+         * 大值文件的目录，在数据库文件旁边
+         */
+        File getValueDirectory() {
+            return new File(getDatabaseFile().getPath() + "-values");
+        }
+
+        private synchronized boolean deleteDatabase() {
+            closeDatabase();
+            mKeyFilter.deleteFile();
+            File[] valueFiles = getValueDirectory().listFiles();
+            if (valueFiles != null) {
+                for (File file : valueFiles) {
+                    file.delete();
+                }
+            }
+            return mContext.deleteDatabase(mDatabaseName);
+        }
+
+        private synchronized void closeDatabase() {
+            if (mDb != null && mDb.isOpen()) {
+                mDb.close();
+                mDb = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.reone.kvstoragelib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把一个逻辑上的存储按key的hash分散到多个引擎（文件）中，不同分片的读写互不阻塞
+ * 通过{@link KVStorageOptions.Builder#shards}开启，每个分片由{@link KVStorageOptions.Builder#engine}创建
+ * <p>
+ * key所在的分片由{@link String#hashCode()}决定，分片数不能修改
+ * 事务依次在所有分片上开启（固定顺序，不会死锁），提交时逐个分片提交，只在单个分片内是原子的；
+ * 只涉及部分key的事务用{@link #runInTransaction(String[], KVStorage.TransactionRunnable)}只锁定这些key所在的分片；
+ * 批量写入、批量删除按分片拆分，每个分片一个事务
+ */
+public class ShardedStorageEngine implements StorageEngine {
+
+    private static final Comparator<Map.Entry<String, String>> BY_KEY = (a, b) -> a.getKey().compareTo(b.getKey());
+
+    private final StorageEngine[] shards;
+
+    public ShardedStorageEngine(@NonNull StorageEngine... shards) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * 分片实例名中的分隔符，{@link KVStorage#open}不接受，所以分片的文件不会与其他实例的文件重名
+     */
+    private static final String SHARD_SEPARATOR = "#shard";
+
+    /**
+     * 按options创建{@link KVStorageOptions#shards}个分片，分片i的实例名为 name#shardi（默认实例为 #shardi）
+     */
+    @NonNull
+    static ShardedStorageEngine create(@NonNull Context context, @NonNull KVStorageOptions options) {
+        StorageEngine[] shards = new StorageEngine[options.shards];
+        for (int i = 0; i < shards.length; i++) {
+            String shardName = (options.name == null ? "" : options.name) + SHARD_SEPARATOR + i;
+            shards[i] = options.engineFactory.create(context, options.withName(shardName));
+        }
+        return new ShardedStorageEngine(shards);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @NonNull
+    public StorageEngine getShard(int index) {
+        return shards[index];
+    }
+
+    int shardOf(@NonNull String key) {
+        return (key.hashCode() & 0x7FFFFFFF) % shards.length;
+    }
+
+    @Nullable
+    @Override
+    public String get(@NonNull String key) {
+        return shards[shardOf(key)].get(key);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, String> getAll(@NonNull String[] keys) {
+        List<List<String>> groups = groupKeys(keys);
+        Map<String, String> result = new LinkedHashMap<>(keys.length);
+        for (int i = 0; i < shards.length; i++) {
+            List<String> group = groups.get(i);
+            if (!group.isEmpty()) {
+                result.putAll(shards[i].getAll(group.toArray(new String[group.size()])));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean put(@NonNull String key, @Nullable String value) {
+        return shards[shardOf(key)].put(key, value);
+    }
+
+    /**
+     * 每个分片一个事务
+     */
+    @Override
+    public int putAll(@NonNull Map<String, String> keyValues) {
+        List<Map<String, String>> groups = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            groups.add(new LinkedHashMap<>());
+        }
+        for (Map.Entry<String, String> entry : keyValues.entrySet()) {
+            groups.get(shardOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        int lineCount = 0;
+        for (int i = 0; i < shards.length; i++) {
+            if (!groups.get(i).isEmpty()) {
+                lineCount += shards[i].putAll(groups.get(i));
+            }
+        }
+        return lineCount;
+    }
+
+    /**
+     * 每个分片一个事务
+     */
+    @Override
+    public int delete(@NonNull String... keys) {
+        List<List<String>> groups = groupKeys(keys);
+        int lineCount = 0;
+        for (int i = 0; i < shards.length; i++) {
+            List<String> group = groups.get(i);
+            if (!group.isEmpty()) {
+                lineCount += shards[i].delete(group.toArray(new String[group.size()]));
+            }
+        }
+        return lineCount;
+    }
+
+    @NonNull
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for (StorageEngine shard : shards) {
+            keys.addAll(shard.keys());
+        }
+        return keys;
+    }
+
+    /**
+     * 每个分片各取一页后归并，取最小的limit条
+     */
+    @NonNull
+    @Override
+    public List<Map.Entry<String, String>> scan(@Nullable String afterKey, @Nullable String prefix, int limit, boolean withValues) {
+        List<Map.Entry<String, String>> merged = new ArrayList<>();
+        for (StorageEngine shard : shards) {
+            merged.addAll(shard.scan(afterKey, prefix, limit, withValues));
+        }
+        Collections.sort(merged, BY_KEY);
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+
+    @Override
+    public int clear() {
+        int lineCount = 0;
+        for (StorageEngine shard : shards) {
+            lineCount += shard.clear();
+        }
+        return lineCount;
+    }
+
+    /**
+     * 按分片顺序嵌套开启所有分片的事务，func中通过本引擎读写
+     */
+    @Override
+    public <R> R runInTransaction(@NonNull KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        int[] indexes = new int[shards.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        return runInTransaction(indexes, 0, func);
+    }
+
+    /**
+     * 只在keys所在的分片上按分片顺序嵌套开启事务，func中只能读写这些key
+     * 不同分片上的这类事务互不阻塞
+     */
+    <R> R runInTransaction(@NonNull String[] keys, @NonNull KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        boolean[] used = new boolean[shards.length];
+        int count = 0;
+        for (String key : keys) {
+            int shard = shardOf(key);
+            if (!used[shard]) {
+                used[shard] = true;
+                count++;
+            }
+        }
+        int[] indexes = new int[count];
+        for (int i = 0, j = 0; i < used.length; i++) {
+            if (used[i]) {
+                indexes[j++] = i;
+            }
+        }
+        return runInTransaction(indexes, 0, func);
+    }
+
+    private <R> R runInTransaction(int[] indexes, int position, KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        if (position == indexes.length) {
+            return func.invoke(this);
+        }
+        return shards[indexes[position]].runInTransaction(engine -> runInTransaction(indexes, position + 1, func));
+    }
+
+    /**
+     * 按分片顺序嵌套开启所有分片的只读快照（见{@link SQLiteStorageEngine#runInSnapshot}），其他引擎的分片开启事务
+     * func中只能通过本引擎的{@link #scan}读取
+     */
+    <R> R runInSnapshot(@NonNull KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        return runInSnapshot(0, func);
+    }
+
+    private <R> R runInSnapshot(int position, KVStorage.TransactionRunnable<StorageEngine, R> func) {
+        if (position == shards.length) {
+            return func.invoke(this);
+        }
+        KVStorage.TransactionRunnable<StorageEngine, R> next = engine -> runInSnapshot(position + 1, func);
+        return shards[position] instanceof SQLiteStorageEngine
+                ? ((SQLiteStorageEngine) shards[position]).runInSnapshot(next)
+                : shards[position].runInTransaction(next);
+    }
+
+    @Override
+    public boolean inTransaction() {
+        for (StorageEngine shard : shards) {
+            if (shard.inTransaction()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void clearAndClose() {
+        for (StorageEngine shard : shards) {
+            shard.clearAndClose();
+        }
+    }
+
+    /**
+     * 按分片分组，第i组为第i个分片中的key
+     */
+    @NonNull
+    List<List<String>> groupKeys(@NonNull String[] keys) {
+        List<List<String>> groups = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (String key : keys) {
+            groups.get(shardOf(key)).add(key);
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,237 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 导出/导入的二进制格式，{@link KVStore#exportTo}、{@link KVStore#importFrom}使用
+ * 格式：magic(4) | version(4) | 块... | 0(4) | 总行数(8)
+ * 块：行数(4) | 字节数(4) | 数据 | CRC32(4)，每行为 key字节数(4) | key | 类型(1) | value字节数(4) | value | 过期时间(8，0表示不过期)
+ * 类型见{@link #TYPE_STRING}等，字符串为UTF-8，整数和浮点数为8字节，二进制值为原始字节；版本1没有类型，都是字符串
+ * <p>
+ * 按块写入和校验，块的数据达到{@link #BLOCK_SIZE}时写出，内存中最多一个块，导入时每个块校验通过后才会写入
+ */
+final class Snapshot {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4B565353; // "KVSS"
+    private static final int VERSION = 2;
+    private static final int VERSION_UNTYPED = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * 写入时块的数据超过该大小就写出
+     */
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    /**
+     * 单个块的上限，防止损坏的长度字段导致分配过大的数组；写入时单行超过该大小会失败
+     */
+    private static final int MAX_BLOCK_SIZE = 256 * 1024 * 1024;
+
+    static final byte TYPE_STRING = 0;
+    static final byte TYPE_LONG = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_BYTES = 3;
+
+    private Snapshot() {
+    }
+
+    static final class Writer {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream block = new DataOutputStream(new CheckedOutputStream(blockBytes, crc));
+        private int blockRows = 0;
+        private long rowCount = 0;
+
+        Writer(@NonNull OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+        }
+
+        /**
+         * 把一行加入当前块，块的数据达到{@link #BLOCK_SIZE}时写出
+         *
+         * @param value    String、Long、Double或byte[]，按类型写入，导入时按原类型恢复
+         * @param expiresAt 过期时间，0表示不过期
+         * @throws IOException 单行超过{@link #MAX_BLOCK_SIZE}，导入时无法读取
+         */
+        void writeRow(@NonNull String key, @NonNull Object value, long expiresAt) throws IOException {
+            writeBytes(key.getBytes(UTF_8));
+            if (value instanceof Long) {
+                block.writeByte(TYPE_LONG);
+                block.writeInt(8);
+                block.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                block.writeByte(TYPE_DOUBLE);
+                block.writeInt(8);
+                block.writeDouble((Double) value);
+            } else if (value instanceof byte[]) {
+                block.writeByte(TYPE_BYTES);
+                writeBytes((byte[]) value);
+            } else {
+                block.writeByte(TYPE_STRING);
+                writeBytes(value.toString().getBytes(UTF_8));
+            }
+            block.writeLong(expiresAt);
+            if (blockBytes.size() > MAX_BLOCK_SIZE) {
+                throw new IOException("Value of " + key + " is too large for a snapshot block");
+            }
+            blockRows++;
+            if (blockBytes.size() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        /**
+         * 写出未满的块和结束标记并flush，不关闭输出流
+         *
+         * @return 总行数
+         */
+        long finish() throws IOException {
+            flushBlock();
+            out.writeInt(0);
+            out.writeLong(rowCount);
+            out.flush();
+            return rowCount;
+        }
+
+        private void flushBlock() throws IOException {
+            if (blockRows == 0) {
+                return;
+            }
+            out.writeInt(blockRows);
+            out.writeInt(blockBytes.size());
+            blockBytes.writeTo(out);
+            out.writeInt((int) crc.getValue());
+            rowCount += blockRows;
+            blockRows = 0;
+            blockBytes.reset();
+            crc.reset();
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            block.writeInt(bytes.length);
+            block.write(bytes);
+        }
+    }
+
+    static final class Reader {
+        private final DataInputStream in;
+        private final CRC32 crc = new CRC32();
+        private final long now = System.currentTimeMillis();
+        private final boolean typed;
+        private byte[] buffer = new byte[0];
+        private long rowCount = 0;
+        private boolean finished = false;
+
+        Reader(@NonNull InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a KVStorage snapshot");
+            }
+            int version = this.in.readInt();
+            if (version != VERSION && version != VERSION_UNTYPED) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            typed = version != VERSION_UNTYPED;
+        }
+
+        /**
+         * 读取并校验一个块，放入values；导出时已经过期的行会被跳过
+         *
+         * @param values   放入String、Long、Double或byte[]，与导出时的类型相同
+         * @param expiries 放入有过期时间的key的过期时间
+         * @return 读到结束标记时返回false
+         * @throws IOException 数据损坏或不完整
+         */
+        boolean readBlock(@NonNull Map<String, Object> values, @NonNull Map<String, Long> expiries) throws IOException {
+            if (finished) {
+                return false;
+            }
+            int rows = in.readInt();
+            if (rows == 0) {
+                long expected = in.readLong();
+                if (expected != rowCount) {
+                    throw new IOException("Snapshot row count mismatch, expected " + expected + " but read " + rowCount);
+                }
+                finished = true;
+                return false;
+            }
+            int size = in.readInt();
+            if (rows < 0 || size < 0 || size > MAX_BLOCK_SIZE) {
+                throw new IOException("Corrupted snapshot block header");
+            }
+            if (buffer.length < size) {
+                buffer = new byte[size];
+            }
+            in.readFully(buffer, 0, size);
+            crc.reset();
+            crc.update(buffer, 0, size);
+            if ((int) crc.getValue() != in.readInt()) {
+                throw new IOException("Snapshot checksum mismatch at row " + rowCount);
+            }
+            DataInputStream block = new DataInputStream(new ByteArrayInputStream(buffer, 0, size));
+            for (int i = 0; i < rows; i++) {
+                String key = new String(readBytes(block), UTF_8);
+                Object value = typed ? readValue(block) : new String(readBytes(block), UTF_8);
+                long expiresAt = block.readLong();
+                if (expiresAt == 0) {
+                    values.put(key, value);
+                } else if (expiresAt > now) {
+                    values.put(key, value);
+                    expiries.put(key, expiresAt);
+                }
+            }
+            rowCount += rows;
+            return true;
+        }
+
+        private static Object readValue(DataInputStream block) throws IOException {
+            byte type = block.readByte();
+            byte[] bytes = readBytes(block);
+            switch (type) {
+                case TYPE_STRING:
+                    return new String(bytes, UTF_8);
+                case TYPE_BYTES:
+                    return bytes;
+                case TYPE_LONG:
+                case TYPE_DOUBLE:
+                    if (bytes.length != 8) {
+                        break;
+                    }
+                    DataInputStream number = new DataInputStream(new ByteArrayInputStream(bytes));
+                    if (type == TYPE_LONG) {
+                        return number.readLong();
+                    }
+                    return number.readDouble();
+                default:
+                    break;
+            }
+            throw new IOException("Corrupted snapshot row");
+        }
+
+        private static byte[] readBytes(DataInputStream block) throws IOException {
+            int length = block.readInt();
+            if (length < 0 || length > block.available()) {
+                throw new IOException("Corrupted snapshot row");
+            }
+            byte[] bytes = new byte[length];
+            block.readFully(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.reone.kvstoragelib;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 存储引擎，KVStorage 的读写最终都由引擎完成，内存缓存、延迟写等由 KVStorage 在引擎之上实现
+ * 默认使用{@link SQLiteStorageEngine}；小数据、写多读少的场景可以使用{@link LogStorageEngine}
+ * <p>
+ * 实现需要保证线程安全，并在第一次读写时再打开底层文件
+ */
+public interface StorageEngine {
+
+    interface Factory {
+        @NonNull
+        StorageEngine create(@NonNull Context context, @NonNull KVStorageOptions options);
+    }
+
+    /**
+     * Returns the value of the given key, or null if not found.
+     */
+    @Nullable
+    String get(@NonNull String key);
+
+    /**
+     * 批量获取，不存在的key不会出现在结果中
+     */
+    @NonNull
+    Map<String, String> getAll(@NonNull String[] keys);
+
+    /**
+     * 设置给定键的值，如果成功则返回true，否则返回false（value为null时返回false）
+     */
+    boolean put(@NonNull String key, @Nullable String value);
+
+    /**
+     * 在一个事务中写入所有数据，值为null的key会被忽略
+     *
+     * @return 写入的行数
+     */
+    int putAll(@NonNull Map<String, String> keyValues);
+
+    /**
+     * 在一个事务中删除所有key
+     *
+     * @return 删除的行数
+     */
+    int delete(@NonNull String... keys);
+
+    @NonNull
+    List<String> keys();
+
+    /**
+     * 按key升序分页扫描，返回大于afterKey且以prefix开头的最多limit条记录
+     * 返回空列表表示已经扫描到末尾（并发删除时一页可能少于limit条）
+     *
+     * @param afterKey   上一页的最后一个key，null表示从头开始
+     * @param prefix     null表示不过滤
+     * @param withValues 为false时只返回key，value为null
+     */
+    @NonNull
+    List<Map.Entry<String, String>> scan(@Nullable String afterKey, @Nullable String prefix, int limit, boolean withValues);
+
+    /**
+     * @return 删除的行数
+     */
+    int clear();
+
+    /**
+     * 开启事务执行，func中通过传入的引擎读写，func抛出异常时回滚
+     * 可以嵌套，只有最外层的事务结束时才提交
+     */
+    <R> R runInTransaction(@NonNull KVStorage.TransactionRunnable<StorageEngine, R> func);
+
+    /**
+     * 当前线程是否在事务中
+     */
+    boolean inTransaction();
+
+    /**
+     * 清空并关闭，之后再次读写时会重新打开
+     */
+    void clearAndClose();
+}
@@ -0,0 +1,284 @@
+package com.reone.kvstoragelib;
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 值压缩，{@link SQLiteStorageEngine}使用
+ * 长度达到阈值的值用Deflate压缩后以BLOB保存，格式：magic(2) | codec(1) | 原始字节数(4) | 压缩数据
+ * 未压缩的值仍以TEXT保存，读取时按列类型区分，所以旧数据不受影响
+ * {@link KVStorage#putBytes}写入的二进制值也以BLOB保存，格式：magic(2) | codec(1) | 数据；没有magic的BLOB也按二进制值处理
+ * 保存在单独文件中的大值（见{@link KVStorage#writeValue}），行中只保存清单：magic(2) | codec(1) | 是否二进制(1) | 字节数(8) | 文件id(8)
+ * <p>
+ * 同时统计压缩率和编解码耗时
+ */
+public final class ValueCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte MAGIC_0 = 'K';
+    private static final byte MAGIC_1 = 'Z';
+    private static final byte CODEC_RAW = 0;
+    private static final byte CODEC_DEFLATE = 1;
+    private static final byte CODEC_FILE = 2;
+    private static final int RAW_HEADER_SIZE = 2 + 1;
+    private static final int HEADER_SIZE = 2 + 1 + 4;
+    static final int FILE_MANIFEST_SIZE = 2 + 1 + 1 + 8 + 8;
+
+    private final int threshold;
+    /**
+     * 大值文件所在的目录
+     */
+    @NonNull
+    private final File valueDirectory;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<>();
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<>();
+
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong decodeCount = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+    /**
+     * @param threshold 字符数达到该值时压缩，0表示不压缩
+     */
+    ValueCodec(int threshold, @NonNull File valueDirectory) {
+        this.threshold = threshold;
+        this.valueDirectory = valueDirectory;
+    }
+
+    public boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    /**
+     * @return 压缩后的BLOB；不需要压缩或压缩后没有变小时返回null，此时按TEXT保存
+     */
+    @Nullable
+    byte[] encode(@NonNull String value) {
+        if (threshold <= 0 || value.length() < threshold) {
+            return null;
+        }
+        long begin = System.nanoTime();
+        byte[] raw = value.getBytes(UTF_8);
+        Deflater deflater = deflaters.get();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            deflaters.set(deflater);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + HEADER_SIZE);
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(CODEC_DEFLATE);
+        out.write(raw.length >>> 24);
+        out.write(raw.length >>> 16);
+        out.write(raw.length >>> 8);
+        out.write(raw.length);
+        byte[] buffer = new byte[8192];
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+                if (out.size() >= raw.length) {
+                    // 压缩没有收益
+                    return null;
+                }
+            }
+        } finally {
+            deflater.reset();
+        }
+        compressedCount.incrementAndGet();
+        uncompressedBytes.addAndGet(raw.length);
+        compressedBytes.addAndGet(out.size());
+        encodeNanos.addAndGet(System.nanoTime() - begin);
+        return out.toByteArray();
+    }
+
+    /**
+     * 二进制值加上头部，以区别于压缩的字符串
+     */
+    @NonNull
+    static byte[] wrapBytes(@NonNull byte[] bytes) {
+        byte[] blob = new byte[RAW_HEADER_SIZE + bytes.length];
+        blob[0] = MAGIC_0;
+        blob[1] = MAGIC_1;
+        blob[2] = CODEC_RAW;
+        System.arraycopy(bytes, 0, blob, RAW_HEADER_SIZE, bytes.length);
+        return blob;
+    }
+
+    /**
+     * 保存在文件中的值的清单
+     *
+     * @param binary 是否为二进制值，否则为UTF-8字符串
+     */
+    @NonNull
+    static byte[] fileManifest(boolean binary, long length, long fileId) {
+        return ByteBuffer.allocate(FILE_MANIFEST_SIZE)
+                .put(MAGIC_0).put(MAGIC_1).put(CODEC_FILE).put((byte) (binary ? 1 : 0))
+                .putLong(length).putLong(fileId)
+                .array();
+    }
+
+    /**
+     * @return 清单中的文件id，不是清单时返回-1
+     */
+    static long fileIdOf(@NonNull byte[] blob) {
+        if (blob.length != FILE_MANIFEST_SIZE || blob[0] != MAGIC_0 || blob[1] != MAGIC_1 || blob[2] != CODEC_FILE) {
+            return -1;
+        }
+        return ByteBuffer.wrap(blob, 12, 8).getLong();
+    }
+
+    @NonNull
+    File valueFile(long fileId) {
+        return new File(valueDirectory, Long.toString(fileId));
+    }
+
+    /**
+     * 读取cursor中的值，压缩的BLOB解压，二进制值转为Base64，其余按字符串读取
+     */
+    @Nullable
+    String read(@NonNull Cursor cursor, int columnIndex) {
+        if (cursor.getType(columnIndex) != Cursor.FIELD_TYPE_BLOB) {
+            return cursor.getString(columnIndex);
+        }
+        Object value = decode(cursor.getBlob(columnIndex));
+        return value instanceof byte[] ? Base64.encodeToString((byte[]) value, Base64.NO_WRAP) : (String) value;
+    }
+
+    /**
+     * 按列的原始类型读取：整数为Long，浮点数为Double，字符串为String，二进制值为byte[]
+     */
+    @Nullable
+    Object readValue(@NonNull Cursor cursor, int columnIndex) {
+        switch (cursor.getType(columnIndex)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(columnIndex);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(columnIndex);
+            case Cursor.FIELD_TYPE_BLOB:
+                return decode(cursor.getBlob(columnIndex));
+            default:
+                return cursor.getString(columnIndex);
+        }
+    }
+
+    /**
+     * @return 压缩的字符串解压后返回String，二进制值返回byte[]
+     */
+    @NonNull
+    Object decode(@NonNull byte[] blob) {
+        if (blob.length < RAW_HEADER_SIZE || blob[0] != MAGIC_0 || blob[1] != MAGIC_1) {
+            // 不是由本类写入的BLOB
+            return blob;
+        }
+        if (blob[2] == CODEC_RAW) {
+            byte[] bytes = new byte[blob.length - RAW_HEADER_SIZE];
+            System.arraycopy(blob, RAW_HEADER_SIZE, bytes, 0, bytes.length);
+            return bytes;
+        }
+        long fileId = fileIdOf(blob);
+        if (fileId >= 0) {
+            byte[] bytes = readFile(valueFile(fileId));
+            return blob[3] != 0 ? bytes : new String(bytes, UTF_8);
+        }
+        if (blob[2] != CODEC_DEFLATE || blob.length < HEADER_SIZE) {
+            throw new IllegalStateException("Unknown value codec " + blob[2]);
+        }
+        long begin = System.nanoTime();
+        int length = ((blob[3] & 0xFF) << 24) | ((blob[4] & 0xFF) << 16) | ((blob[5] & 0xFF) << 8) | (blob[6] & 0xFF);
+        byte[] raw = new byte[length];
+        Inflater inflater = inflaters.get();
+        if (inflater == null) {
+            inflater = new Inflater();
+            inflaters.set(inflater);
+        }
+        try {
+            inflater.setInput(blob, HEADER_SIZE, blob.length - HEADER_SIZE);
+            int offset = 0;
+            while (offset < length) {
+                int count = inflater.inflate(raw, offset, length - offset);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Compressed value is truncated");
+                }
+                offset += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Decompressing value failed", e);
+        } finally {
+            inflater.reset();
+        }
+        decodeCount.incrementAndGet();
+        decodeNanos.addAndGet(System.nanoTime() - begin);
+        return new String(raw, UTF_8);
+    }
+
+    private static byte[] readFile(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            return bytes;
+        } catch (IOException e) {
+            throw new IllegalStateException("Reading value file " + file.getName() + " failed", e);
+        }
+    }
+
+    /**
+     * 压缩保存的值的个数
+     */
+    public long compressedCount() {
+        return compressedCount.get();
+    }
+
+    /**
+     * 压缩后字节数 / 压缩前字节数，没有压缩过时返回1
+     */
+    public double compressionRatio() {
+        long uncompressed = uncompressedBytes.get();
+        return uncompressed == 0 ? 1 : (double) compressedBytes.get() / uncompressed;
+    }
+
+    /**
+     * 平均压缩耗时（微秒）
+     */
+    public double averageEncodeMicros() {
+        long count = compressedCount.get();
+        return count == 0 ? 0 : encodeNanos.get() / 1000.0 / count;
+    }
+
+    /**
+     * 平均解压耗时（微秒）
+     */
+    public double averageDecodeMicros() {
+        long count = decodeCount.get();
+        return count == 0 ? 0 : decodeNanos.get() / 1000.0 / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "ValueCodec[threshold=%d,compressed=%d,ratio=%.3f,encode=%.1fus,decode=%.1fus]",
+                threshold, compressedCount(), compressionRatio(), averageEncodeMicros(), averageDecodeMicros());
+    }
+}
@@ -0,0 +1,145 @@
+package com.reone.kvstoragelib;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * 延迟写队列
+ * save 只写入内存中的待写map，同一个key的多次写入会被合并，
+ * 到达时间间隔或数量阈值时由单个后台线程在一个事务中写入数据库
+ * <p>
+ * 锁顺序：flushLock -> 数据库连接，持有数据库连接（事务中）时不能调用{@link #flush()}、{@link #discard}
+ */
+final class WriteBehindQueue {
+
+    private static final String TAG = "KVStorage";
+
+    interface Writer {
+        /**
+         * 在一个事务中写入所有数据
+         */
+        void writeAll(Map<String, String> keyValues);
+    }
+
+    private final Writer writer;
+    private final long flushIntervalMs;
+    private final int flushThreshold;
+
+    private final Object lock = new Object();
+    private final Object flushLock = new Object();
+    private Map<String, String> pending = new LinkedHashMap<>();
+    private Map<String, String> inFlight = Collections.emptyMap();
+    private boolean flushScheduled = false;
+    private boolean flushImmediately = false;
+
+    WriteBehindQueue(Writer writer, long flushIntervalMs, int flushThreshold) {
+        this.writer = writer;
+        this.flushIntervalMs = flushIntervalMs;
+        this.flushThreshold = flushThreshold;
+    }
+
+    void put(String key, String value) {
+        synchronized (lock) {
+            pending.put(key, value);
+            if (pending.size() >= flushThreshold) {
+                if (!flushImmediately) {
+                    flushImmediately = true;
+                    scheduleFlush(0);
+                }
+            } else if (!flushScheduled) {
+                scheduleFlush(flushIntervalMs);
+            }
+        }
+    }
+
+    /**
+     * 返回还未落库的值，不在队列中时返回null
+     */
+    @Nullable
+    String get(String key) {
+        synchronized (lock) {
+            String value = pending.get(key);
+            return value != null ? value : inFlight.get(key);
+        }
+    }
+
+    /**
+     * 丢弃给定key还未落库的值，会等待正在进行的写入完成
+     */
+    void discard(String... keys) {
+        synchronized (flushLock) {
+            synchronized (lock) {
+                for (String key : keys) {
+                    pending.remove(key);
+                }
+            }
+        }
+    }
+
+    void discardAll() {
+        synchronized (flushLock) {
+            synchronized (lock) {
+                pending.clear();
+            }
+        }
+    }
+
+    /**
+     * 把所有待写数据在一个事务中写入数据库
+     */
+    void flush() {
+        synchronized (flushLock) {
+            Map<String, String> snapshot;
+            synchronized (lock) {
+                flushScheduled = false;
+                flushImmediately = false;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                snapshot = pending;
+                inFlight = snapshot;
+                pending = new LinkedHashMap<>();
+            }
+            try {
+                writer.writeAll(snapshot);
+            } catch (RuntimeException e) {
+                // 写入失败，放回队列等待下次写入，期间更新过的key以新值为准
+                synchronized (lock) {
+                    for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                        if (!pending.containsKey(entry.getKey())) {
+                            pending.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                throw e;
+            } finally {
+                synchronized (lock) {
+                    inFlight = Collections.emptyMap();
+                }
+            }
+        }
+    }
+
+    private void scheduleFlush(long delayMs) {
+        flushScheduled = true;
+        Schedulers.single().scheduleDirect(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "write-behind flush failed", e);
+                synchronized (lock) {
+                    if (!flushScheduled && !pending.isEmpty()) {
+                        scheduleFlush(flushIntervalMs);
+                    }
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+}